@@ -0,0 +1,167 @@
+package de.ismll.core;
+
+import java.io.DataInputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.DoubleBuffer;
+import java.nio.channels.FileChannel;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Binary columnar format for meta-data sets. A file consists of a header (magic number, version, number of instances n, number of hyperparameters h,
+ * number of meta-features m, number of values), the n targets, the h hyperparameter columns with n values each and the m meta-features, which are
+ * the same for all instances of a data set and therefore stored only once. Files are read through a memory-mapped buffer, one bulk read per column.
+ */
+public abstract class BinaryInstances
+{
+	private static final int MAGIC = 0x54535442;
+
+	private static final int VERSION = 1;
+
+	private static final int HEADER_SIZE = 4 * 6;
+
+	/**
+	 * Whether the file starts with the magic number of the binary format. Text files never do, since they start with a number.
+	 */
+	public static boolean isBinary(File file) throws IOException
+	{
+		if(file.length() < HEADER_SIZE)
+			return false;
+		DataInputStream in = new DataInputStream(new FileInputStream(file));
+		try
+		{
+			return in.readInt() == MAGIC;
+		}
+		finally
+		{
+			in.close();
+		}
+	}
+
+	/**
+	 * Writes the instances in the binary format. The first numHyperparameters values are stored as columns, all remaining values as meta-features.
+	 *
+	 * @throws IllegalArgumentException
+	 *             if the meta-features are not the same for all instances.
+	 */
+	public static void write(Instances instances, int numHyperparameters, File file) throws IOException
+	{
+		int n = instances.numInstances();
+		int numValues = instances.numValues();
+		if(numHyperparameters > numValues)
+			throw new IllegalArgumentException("There are only " + numValues + " values but " + numHyperparameters + " hyperparameters.");
+		int m = numValues - numHyperparameters;
+
+		double[][] rows = new double[n][];
+		for(int i = 0; i < n; i++)
+		{
+			rows[i] = toDense(instances.instance(i), numValues);
+			for(int k = numHyperparameters; k < numValues; k++)
+				if(Double.doubleToLongBits(rows[i][k]) != Double.doubleToLongBits(rows[0][k]))
+					throw new IllegalArgumentException("Meta-feature " + (k - numHyperparameters) + " differs between instance 0 and " + i + ".");
+		}
+
+		ByteBuffer buffer = ByteBuffer.allocate(HEADER_SIZE + 8 * (n + n * numHyperparameters + m));
+		buffer.putInt(MAGIC).putInt(VERSION).putInt(n).putInt(numHyperparameters).putInt(m).putInt(numValues);
+		DoubleBuffer doubles = buffer.asDoubleBuffer();
+		for(int i = 0; i < n; i++)
+			doubles.put(instances.instance(i).target());
+		for(int k = 0; k < numHyperparameters; k++)
+			for(int i = 0; i < n; i++)
+				doubles.put(rows[i][k]);
+		if(n > 0)
+			doubles.put(rows[0], numHyperparameters, m);
+		buffer.rewind();
+
+		RandomAccessFile raf = new RandomAccessFile(file, "rw");
+		try
+		{
+			raf.setLength(0);
+			FileChannel channel = raf.getChannel();
+			while(buffer.hasRemaining())
+				channel.write(buffer);
+		}
+		finally
+		{
+			raf.close();
+		}
+	}
+
+	/**
+	 * Adds the instances stored in the binary file to the list. Every instance is dense and holds its hyperparameters followed by the meta-features.
+	 *
+	 * @return the number of values.
+	 * @throws IOException
+	 *             if the file is not a valid binary file.
+	 */
+	static int read(File file, List<Instance> instances) throws IOException
+	{
+		DenseInstances dense = readDense(file);
+		for(int i = 0; i < dense.numInstances(); i++)
+		{
+			Instance instance = dense.instance(i);
+			instances.add(new DenseInstance(instance.target(), Arrays.copyOfRange(dense.getData(), instance.getOffset(), instance.getOffset() + dense.numValues()), false));
+		}
+		return dense.numValues();
+	}
+
+	/**
+	 * Reads the binary file column by column into the matrix of {@link DenseInstances}.
+	 *
+	 * @throws IOException
+	 *             if the file is not a valid binary file.
+	 */
+	static DenseInstances readDense(File file) throws IOException
+	{
+		RandomAccessFile raf = new RandomAccessFile(file, "r");
+		ByteBuffer buffer;
+		try
+		{
+			FileChannel channel = raf.getChannel();
+			buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+		}
+		finally
+		{
+			raf.close();
+		}
+		if(buffer.remaining() < HEADER_SIZE || buffer.getInt() != MAGIC || buffer.getInt() != VERSION)
+			throw new IOException(file.getAbsolutePath() + " is not a binary instances file.");
+		int n = buffer.getInt();
+		int numHyperparameters = buffer.getInt();
+		int m = buffer.getInt();
+		int numValues = buffer.getInt();
+		if(n < 0 || numHyperparameters < 0 || m < 0 || numHyperparameters + m != numValues || buffer.remaining() != 8L * (n + (long) n * numHyperparameters + m))
+			throw new IOException(file.getAbsolutePath() + " is truncated.");
+
+		DoubleBuffer doubles = buffer.asDoubleBuffer();
+		double[] targets = new double[n];
+		doubles.get(targets);
+		double[] data = new double[n * numValues];
+		double[] column = new double[n];
+		for(int k = 0; k < numHyperparameters; k++)
+		{
+			doubles.get(column);
+			for(int i = 0; i < n; i++)
+				data[i * numValues + k] = column[i];
+		}
+		double[] metaFeatures = new double[m];
+		doubles.get(metaFeatures);
+		for(int i = 0; i < n; i++)
+			System.arraycopy(metaFeatures, 0, data, i * numValues + numHyperparameters, m);
+		return DenseInstances.wrap(data, targets, n, numValues);
+	}
+
+	private static double[] toDense(Instance instance, int numValues)
+	{
+		double[] row = new double[numValues];
+		int[] keys = instance.getKeys();
+		double[] values = instance.getValues();
+		for(int i = 0; i < keys.length; i++)
+			row[keys[i]] = values[i];
+		return row;
+	}
+}
@@ -0,0 +1,268 @@
+package de.ismll.core;
+
+import java.util.Arrays;
+
+/**
+ * Lower triangular Cholesky factor L of a symmetric positive definite matrix K = L * L^T.
+ *
+ * L is stored packed and row by row in a plain double array, i.e. entry (i, j) with j <= i is found at i * (i + 1) / 2 + j. Rows are contiguous, so
+ * all inner products of the decomposition and of the triangular solves run with unit stride, and a new row can be appended without touching the
+ * existing ones.
+ */
+public class CholeskyFactor
+{
+	/**
+	 * Pivots below this value are treated as not positive.
+	 */
+	private static final double POSITIVITY_THRESHOLD = 1E-10;
+
+	private static final int MAX_JITTER_TRIES = 10;
+
+	private double[] data;
+
+	private int n;
+
+	/**
+	 * Decomposes the packed lower triangle of K in place, i.e. the array is overwritten by L and owned by this object afterwards. The jitter is added
+	 * to the diagonal beforehand. If a pivot is still not positive, the jitter of this pivot is increased tenfold until it is, so that a failure does
+	 * not require to start over.
+	 *
+	 * @throws IllegalArgumentException
+	 *             if even the increased jitter does not make the matrix positive definite.
+	 */
+	public CholeskyFactor(double[] packedK, int n, double jitter)
+	{
+		if(packedK.length < size(n))
+			throw new IllegalArgumentException("Packed matrix has " + packedK.length + " entries but " + size(n) + " are needed.");
+		this.data = packedK;
+		this.n = n;
+		for(int i = 0; i < n; i++)
+			packedK[index(i, i)] += jitter;
+
+		// Row by row, every entry is the inner product of two contiguous row prefixes.
+		for(int i = 0; i < n; i++)
+		{
+			int rowI = index(i, 0);
+			for(int j = 0; j <= i; j++)
+			{
+				int rowJ = index(j, 0);
+				double sum = packedK[rowI + j];
+				for(int k = 0; k < j; k++)
+					sum -= packedK[rowI + k] * packedK[rowJ + k];
+				if(i == j)
+					packedK[rowI + j] = Math.sqrt(this.recoverPivot(sum, jitter));
+				else
+					packedK[rowI + j] = sum / packedK[rowJ + j];
+			}
+		}
+	}
+
+	private CholeskyFactor(double[] packedL, int n)
+	{
+		this.data = packedL;
+		this.n = n;
+	}
+
+	/**
+	 * Uses an already computed packed factor L without copying it.
+	 */
+	public static CholeskyFactor wrap(double[] packedL, int n)
+	{
+		if(packedL.length < size(n))
+			throw new IllegalArgumentException("Packed matrix has " + packedL.length + " entries but " + size(n) + " are needed.");
+		return new CholeskyFactor(packedL, n);
+	}
+
+	private double recoverPivot(double pivot, double jitter)
+	{
+		double additionalJitter = Math.max(jitter, POSITIVITY_THRESHOLD);
+		int tries = 0;
+		while(!(pivot > POSITIVITY_THRESHOLD))
+		{
+			if(tries++ == MAX_JITTER_TRIES || Double.isNaN(pivot))
+				throw new IllegalArgumentException("Adding Jitter did not work.");
+			pivot += additionalJitter;
+			additionalJitter *= 10;
+		}
+		return pivot;
+	}
+
+	/**
+	 * Position of entry (i, j), j <= i, in the packed array.
+	 */
+	public static int index(int i, int j)
+	{
+		return i * (i + 1) / 2 + j;
+	}
+
+	/**
+	 * Number of entries of a packed triangle with n rows.
+	 */
+	public static int size(int n)
+	{
+		return n * (n + 1) / 2;
+	}
+
+	public int getDimension()
+	{
+		return this.n;
+	}
+
+	/**
+	 * The packed factor. Only the first size(getDimension()) entries are valid.
+	 */
+	public double[] getData()
+	{
+		return this.data;
+	}
+
+	/**
+	 * Solves L * x = b in place.
+	 */
+	public void solveLower(double[] b)
+	{
+		for(int i = 0, row = 0; i < this.n; row += ++i)
+		{
+			double sum = b[i];
+			for(int k = 0; k < i; k++)
+				sum -= this.data[row + k] * b[k];
+			b[i] = sum / this.data[row + i];
+		}
+	}
+
+	/**
+	 * Solves L * X = B in place for m right-hand sides at once. B is stored row-major, i.e. entry (i, c) is found at i * m + c, so every update is a
+	 * contiguous sweep over all right-hand sides.
+	 */
+	public void solveLower(double[] B, int m)
+	{
+		for(int i = 0, row = 0; i < this.n; row += ++i)
+		{
+			int rowB = i * m;
+			for(int k = 0; k < i; k++)
+			{
+				double l = this.data[row + k];
+				int rowK = k * m;
+				for(int c = 0; c < m; c++)
+					B[rowB + c] -= l * B[rowK + c];
+			}
+			double diag = this.data[row + i];
+			for(int c = 0; c < m; c++)
+				B[rowB + c] /= diag;
+		}
+	}
+
+	/**
+	 * Solves L^T * x = b in place without forming the transpose.
+	 */
+	public void solveUpper(double[] b)
+	{
+		for(int i = this.n - 1; i >= 0; i--)
+		{
+			int row = index(i, 0);
+			double x = b[i] /= this.data[row + i];
+			for(int k = 0; k < i; k++)
+				b[k] -= this.data[row + k] * x;
+		}
+	}
+
+	/**
+	 * Solves L^T * X = B in place for m right-hand sides stored row-major as in {@link #solveLower(double[], int)}.
+	 */
+	public void solveUpper(double[] B, int m)
+	{
+		for(int i = this.n - 1; i >= 0; i--)
+		{
+			int row = index(i, 0);
+			int rowB = i * m;
+			double diag = this.data[row + i];
+			for(int c = 0; c < m; c++)
+				B[rowB + c] /= diag;
+			for(int k = 0; k < i; k++)
+			{
+				double l = this.data[row + k];
+				int rowK = k * m;
+				for(int c = 0; c < m; c++)
+					B[rowK + c] -= l * B[rowB + c];
+			}
+		}
+	}
+
+	/**
+	 * Solves K * x = b in place.
+	 */
+	public void solve(double[] b)
+	{
+		this.solveLower(b);
+		this.solveUpper(b);
+	}
+
+	/**
+	 * Computes the packed lower triangle of K^-1 = L^-T * L^-1. L^-1 is built row by row from the rows above it, and K^-1 is accumulated as a sum of
+	 * rank-one updates with the rows of L^-1, so all loops are contiguous sweeps over packed rows.
+	 */
+	public double[] inverse()
+	{
+		double[] lInverse = new double[size(this.n)];
+		for(int i = 0, row = 0; i < this.n; row += ++i)
+		{
+			lInverse[row + i] = 1;
+			for(int k = 0, rowK = 0; k < i; rowK += ++k)
+			{
+				double l = this.data[row + k];
+				for(int j = 0; j <= k; j++)
+					lInverse[row + j] -= l * lInverse[rowK + j];
+			}
+			double diag = this.data[row + i];
+			for(int j = 0; j <= i; j++)
+				lInverse[row + j] /= diag;
+		}
+
+		double[] kInverse = new double[size(this.n)];
+		for(int k = 0, rowK = 0; k < this.n; rowK += ++k)
+		{
+			for(int i = 0, row = 0; i <= k; row += ++i)
+			{
+				double l = lInverse[rowK + i];
+				for(int j = 0; j <= i; j++)
+					kInverse[row + j] += l * lInverse[rowK + j];
+			}
+		}
+		return kInverse;
+	}
+
+	/**
+	 * Sum of the logarithms of the diagonal of L, i.e. half the log-determinant of K.
+	 */
+	public double sumLogDiagonal()
+	{
+		double sum = 0;
+		for(int i = 0; i < this.n; i++)
+			sum += Math.log(this.data[index(i, i)]);
+		return sum;
+	}
+
+	/**
+	 * Appends a row to L in place. The row has to be the solution of L * l = k for the kernel values k between the existing and the new point and diag
+	 * the square root of the corresponding Schur complement.
+	 */
+	public void append(double[] l, double diag)
+	{
+		int offset = size(this.n);
+		if(this.data.length < offset + this.n + 1)
+			this.data = Arrays.copyOf(this.data, size(Math.max(this.n + 1, this.n + (this.n >> 1) + 1)));
+		System.arraycopy(l, 0, this.data, offset, this.n);
+		this.data[offset + this.n] = diag;
+		this.n++;
+	}
+
+	/**
+	 * Drops all rows from n on, which leaves the Cholesky factor of the leading n x n block of K.
+	 */
+	public void truncate(int n)
+	{
+		if(n < 0 || n > this.n)
+			throw new IllegalArgumentException("Cannot truncate a factor of dimension " + this.n + " to dimension " + n + ".");
+		this.n = n;
+	}
+}
@@ -1,21 +1,38 @@
 package de.ismll.core;
 
-import java.util.HashMap;
+import java.util.concurrent.ConcurrentHashMap;
 
 public class DenseInstance extends Instance
 {
-	private static HashMap<Integer, int[]> cachedIndices = new HashMap<Integer, int[]>();
+	private static final ConcurrentHashMap<Integer, int[]> cachedIndices = new ConcurrentHashMap<Integer, int[]>();
 
 	public DenseInstance(double target, double[] values)
 	{
-		super(target, values);
-		if(!cachedIndices.containsKey(values.length))
+		this(target, values, true);
+	}
+
+	DenseInstance(double target, double[] values, boolean copy)
+	{
+		super(target, values, copy);
+		getIndices(values.length);
+	}
+
+	/**
+	 * Returns the keys 0, ..., length - 1, shared by all dense instances of this length.
+	 */
+	static int[] getIndices(int length)
+	{
+		int[] indices = cachedIndices.get(length);
+		if(indices == null)
 		{
-			int[] indices = new int[values.length];
+			indices = new int[length];
 			for(int i = 0; i < indices.length; i++)
 				indices[i] = i;
-			cachedIndices.put(indices.length, indices);
+			int[] previous = cachedIndices.putIfAbsent(length, indices);
+			if(previous != null)
+				indices = previous;
 		}
+		return indices;
 	}
 
 	@Override
@@ -30,10 +47,16 @@ public class DenseInstance extends Instance
 		return this.values;
 	}
 
+	@Override
+	public double[] getValueArray()
+	{
+		return this.values;
+	}
+
 	@Override
 	public int[] getKeys()
 	{
-		return cachedIndices.get(this.values.length);
+		return getIndices(this.values.length);
 	}
 
 	@Override
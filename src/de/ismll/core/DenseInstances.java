@@ -0,0 +1,301 @@
+package de.ismll.core;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+
+/**
+ * Dense instances stored as one row-major matrix with a parallel array of targets, i.e. value j of row i is found at i * numValues() + j. The
+ * instances handed out are lightweight views of their rows that do not own any values, so scans over all instances run through contiguous memory.
+ * Code that knows about the layout can use {@link Instance#getValueArray()} and {@link Instance#getOffset()} to read a row without copying it.
+ *
+ * Adding an instance copies its values into the matrix, so the instance in this set is a view and not the added object itself. A removed view is
+ * detached from the matrix and keeps a copy of its values and target. Every removal, also through {@link #iterator()}, moves the following rows up,
+ * so row i of {@link #getData()} always belongs to instance(i).
+ */
+public class DenseInstances extends Instances
+{
+	private double[] data;
+
+	private double[] targets;
+
+	public DenseInstances(int numValues)
+	{
+		this(numValues, 10);
+	}
+
+	public DenseInstances(int numValues, int capacity)
+	{
+		super(numValues);
+		this.data = new double[numValues * capacity];
+		this.targets = new double[capacity];
+		this.instances = new ArrayList<Instance>(capacity);
+	}
+
+	/**
+	 * Reads a file in any format supported by {@link Instances#Instances(File, String)}. Files in the format of {@link BinaryInstances} are read column
+	 * by column directly into the matrix.
+	 */
+	public static DenseInstances read(File file, String delimiter) throws IOException
+	{
+		if(BinaryInstances.isBinary(file))
+			return BinaryInstances.readDense(file);
+		return copyOf(new Instances(file, delimiter));
+	}
+
+	public static DenseInstances read(File file) throws IOException
+	{
+		return read(file, " ");
+	}
+
+	/**
+	 * Copies the instances into a new matrix.
+	 */
+	public static DenseInstances copyOf(Instances instances)
+	{
+		DenseInstances ret = new DenseInstances(instances.numValues(), instances.numInstances());
+		ret.addAll(instances);
+		return ret;
+	}
+
+	/**
+	 * Wraps a row-major matrix with n rows without copying it.
+	 */
+	static DenseInstances wrap(double[] data, double[] targets, int n, int numValues)
+	{
+		DenseInstances ret = new DenseInstances(numValues, 0);
+		ret.data = data;
+		ret.targets = targets;
+		ret.instances = new ArrayList<Instance>(n);
+		for(int i = 0; i < n; i++)
+			ret.instances.add(ret.new Row(i));
+		return ret;
+	}
+
+	@Override
+	public boolean add(Instance instance)
+	{
+		int maxKey = instance.getKeys().length == 0 ? -1 : instance.getKeys()[instance.getKeys().length - 1];
+		if(maxKey >= this.numValues())
+			throw new IllegalArgumentException("The instance has " + (maxKey + 1) + " attributes but only " + this.numValues() + " are allowed.");
+		int row = this.grow();
+		int offset = row * this.numValues();
+		// The row may still hold the values of a removed instance.
+		Arrays.fill(this.data, offset, offset + this.numValues(), 0);
+		int[] keys = instance.getKeys();
+		double[] values = instance.getValueArray();
+		if(values != null)
+			System.arraycopy(values, instance.getOffset(), this.data, offset, Math.min(keys.length, this.numValues()));
+		else
+		{
+			values = instance.getValues();
+			for(int i = 0; i < keys.length && keys[i] < this.numValues(); i++)
+				this.data[offset + keys[i]] = values[i];
+		}
+		this.targets[row] = instance.target();
+		this.modified();
+		return this.instances.add(new Row(row));
+	}
+
+	/**
+	 * Appends a row with the values values[from, from + numValues()).
+	 */
+	public void add(double target, double[] values, int from)
+	{
+		int row = this.grow();
+		System.arraycopy(values, from, this.data, row * this.numValues(), this.numValues());
+		this.targets[row] = target;
+		this.modified();
+		this.instances.add(new Row(row));
+	}
+
+	@Override
+	public boolean addAll(Instances instances)
+	{
+		for(Instance instance : instances)
+			this.add(instance);
+		return instances.numInstances() > 0;
+	}
+
+	/**
+	 * Removes the row of the view and moves all following rows up by one. The view is detached, see {@link Row#detach()}.
+	 */
+	@Override
+	public boolean remove(Instance instance)
+	{
+		if(!(instance instanceof Row) || ((Row) instance).owner() != this || ((Row) instance).detached != null)
+			return false;
+		int row = ((Row) instance).row;
+		((Row) instance).detach();
+		int n = this.numInstances();
+		System.arraycopy(this.data, (row + 1) * this.numValues(), this.data, row * this.numValues(), (n - row - 1) * this.numValues());
+		System.arraycopy(this.targets, row + 1, this.targets, row, n - row - 1);
+		this.instances.remove(row);
+		this.modified();
+		for(int i = row; i < n - 1; i++)
+			((Row) this.instances.get(i)).row = i;
+		return true;
+	}
+
+	/**
+	 * Returns the removed view, which is detached from the matrix.
+	 */
+	@Override
+	public Instance remove(int index)
+	{
+		Instance instance = this.instance(index);
+		this.remove(instance);
+		return instance;
+	}
+
+	/**
+	 * Returns the row of the instance if it is a view of this set, otherwise -1. This is a constant-time check and not a search.
+	 */
+	public int indexOf(Instance instance)
+	{
+		if(instance instanceof Row && ((Row) instance).owner() == this && ((Row) instance).detached == null)
+			return ((Row) instance).row;
+		return -1;
+	}
+
+	/**
+	 * The row-major matrix of all values. Rows beyond numInstances() are unused.
+	 */
+	public double[] getData()
+	{
+		return this.data;
+	}
+
+	@Override
+	public double[] getTargets()
+	{
+		return Arrays.copyOf(this.targets, this.numInstances());
+	}
+
+	/**
+	 * Instances are kept in row order, so the rows of the matrix are copied into the shuffled order of the views.
+	 */
+	@Override
+	public void shuffle(java.util.Random random)
+	{
+		super.shuffle(random);
+		double[] data = new double[this.data.length];
+		double[] targets = new double[this.targets.length];
+		for(int i = 0; i < this.numInstances(); i++)
+		{
+			Row row = (Row) this.instances.get(i);
+			System.arraycopy(this.data, row.row * this.numValues(), data, i * this.numValues(), this.numValues());
+			targets[i] = this.targets[row.row];
+			row.row = i;
+		}
+		this.data = data;
+		this.targets = targets;
+	}
+
+	/**
+	 * Makes room for one more row and returns its index.
+	 */
+	private int grow()
+	{
+		int n = this.numInstances();
+		if(n == this.targets.length)
+		{
+			int capacity = Math.max(10, n + (n >> 1));
+			this.data = Arrays.copyOf(this.data, capacity * this.numValues());
+			this.targets = Arrays.copyOf(this.targets, capacity);
+		}
+		return n;
+	}
+
+	private class Row extends Instance
+	{
+		private int row;
+
+		/**
+		 * Values of the view after it was removed, null as long as it is part of the matrix.
+		 */
+		private double[] detached;
+
+		private double detachedTarget;
+
+		private Row(int row)
+		{
+			super(0, null, false);
+			this.row = row;
+		}
+
+		private DenseInstances owner()
+		{
+			return DenseInstances.this;
+		}
+
+		/**
+		 * Copies the values and the target of the row, so the view stays valid after the row was removed.
+		 */
+		private void detach()
+		{
+			int offset = this.row * numValues();
+			this.detachedTarget = targets[this.row];
+			this.detached = Arrays.copyOfRange(data, offset, offset + numValues());
+		}
+
+		@Override
+		public double getValue(int index)
+		{
+			return this.getValueArray()[this.getOffset() + index];
+		}
+
+		/**
+		 * Returns a copy of the row, changes have no effect. Unlike other instances, a view does not own an array of its values, use
+		 * {@link #setValue(double, int)} to change a value and {@link #getValueArray()} to read the row without copying.
+		 */
+		@Override
+		public double[] getValues()
+		{
+			int offset = this.getOffset();
+			return Arrays.copyOfRange(this.getValueArray(), offset, offset + numValues());
+		}
+
+		@Override
+		public void setValue(double value, int index)
+		{
+			this.getValueArray()[this.getOffset() + index] = value;
+			if(this.detached == null)
+				modified();
+		}
+
+		@Override
+		public int[] getKeys()
+		{
+			return DenseInstance.getIndices(numValues());
+		}
+
+		@Override
+		public double[] getValueArray()
+		{
+			return this.detached != null ? this.detached : data;
+		}
+
+		@Override
+		public int getOffset()
+		{
+			return this.detached != null ? 0 : this.row * numValues();
+		}
+
+		@Override
+		public double target()
+		{
+			return this.detached != null ? this.detachedTarget : targets[this.row];
+		}
+
+		@Override
+		public void setTarget(double target)
+		{
+			if(this.detached != null)
+				this.detachedTarget = target;
+			else
+				targets[this.row] = target;
+		}
+	}
+}
@@ -0,0 +1,58 @@
+package de.ismll.core;
+
+/**
+ * Density and cumulative distribution function of the standard normal distribution, cheap enough to be evaluated in tight loops.
+ */
+public abstract class Gaussian
+{
+	private static final double SQRT_2PI = Math.sqrt(2 * Math.PI);
+
+	public static double pdf(double x)
+	{
+		return Math.exp(-0.5 * x * x) / SQRT_2PI;
+	}
+
+	/**
+	 * Hart's double precision algorithm 5666 as given by West (2005), "Better approximations to cumulative normal functions". The absolute error is
+	 * below 1E-14 everywhere.
+	 */
+	public static double cdf(double x)
+	{
+		double xAbs = Math.abs(x);
+		double c;
+		if(xAbs > 37)
+			c = 0;
+		else
+		{
+			double e = Math.exp(-xAbs * xAbs / 2);
+			if(xAbs < 7.07106781186547)
+			{
+				double b = 3.52624965998911E-02 * xAbs + 0.700383064443688;
+				b = b * xAbs + 6.37396220353165;
+				b = b * xAbs + 33.912866078383;
+				b = b * xAbs + 112.079291497871;
+				b = b * xAbs + 221.213596169931;
+				b = b * xAbs + 220.206867912376;
+				c = e * b;
+				b = 8.83883476483184E-02 * xAbs + 1.75566716318264;
+				b = b * xAbs + 16.064177579207;
+				b = b * xAbs + 86.7807322029461;
+				b = b * xAbs + 296.564248779674;
+				b = b * xAbs + 637.333633378831;
+				b = b * xAbs + 793.826512519948;
+				b = b * xAbs + 440.413735824752;
+				c /= b;
+			}
+			else
+			{
+				double b = xAbs + 0.65;
+				b = xAbs + 4 / b;
+				b = xAbs + 3 / b;
+				b = xAbs + 2 / b;
+				b = xAbs + 1 / b;
+				c = e / b / SQRT_2PI;
+			}
+		}
+		return x > 0 ? 1 - c : c;
+	}
+}
@@ -9,19 +9,50 @@ public abstract class Instance
 	protected final double[] values;
 
 	public Instance(double target, double[] values)
+	{
+		this(target, values, true);
+	}
+
+	/**
+	 * @param copy
+	 *            Whether the values are copied. Only pass false for arrays that are not used anywhere else.
+	 */
+	Instance(double target, double[] values, boolean copy)
 	{
 		this.target = target;
-		this.values = Arrays.copyOf(values, values.length);
+		this.values = copy ? Arrays.copyOf(values, values.length) : values;
 	}
 
 	public abstract double getValue(int index);
 
+	/**
+	 * Values in the order of {@link #getKeys()}. Dense and sparse instances return the array they own, so changes write through, while views such as
+	 * the rows of {@link DenseInstances} and {@link ProjectedInstance} return a copy. Use {@link #setValue(double, int)} to change a value of any
+	 * instance.
+	 */
 	public abstract double[] getValues();
 	
 	public abstract void setValue(double value, int index);
 
 	public abstract int[] getKeys();
 
+	/**
+	 * Array that holds the values of a dense instance contiguously, starting at {@link #getOffset()}, or null if the instance is sparse. The array may
+	 * be shared with other instances, so only the getKeys().length values from the offset on belong to this instance.
+	 */
+	public double[] getValueArray()
+	{
+		return null;
+	}
+
+	/**
+	 * Position of the first value in {@link #getValueArray()}.
+	 */
+	public int getOffset()
+	{
+		return 0;
+	}
+
 	public void setTarget(double target)
 	{
 		this.target = target;
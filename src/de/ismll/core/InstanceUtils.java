@@ -1,5 +1,6 @@
 package de.ismll.core;
 
+import java.util.Arrays;
 
 public abstract class InstanceUtils
 {
@@ -13,6 +14,34 @@ public abstract class InstanceUtils
 		return new SparseInstance(target, keys, values);
 	}
 
+	/**
+	 * Returns a view of the first k values of the instance that shares its values and its target.
+	 */
+	public static Instance project(Instance instance, int k)
+	{
+		return new ProjectedInstance(instance, k);
+	}
+
+	/**
+	 * Returns a view of the first k values of the instance that shares its values but has its own target.
+	 */
+	public static Instance project(Instance instance, int k, double target)
+	{
+		return new ProjectedInstance(instance, k, target);
+	}
+
+	/**
+	 * Copies the values from, ..., to - 1 like Arrays.copyOfRange(instance.getValues(), from, to), reading dense instances directly from their value
+	 * array.
+	 */
+	public static double[] copyValues(Instance instance, int from, int to)
+	{
+		double[] array = instance.getValueArray();
+		if(array != null && to <= instance.getKeys().length)
+			return Arrays.copyOfRange(array, instance.getOffset() + from, instance.getOffset() + to);
+		return Arrays.copyOfRange(instance.getValues(), from, to);
+	}
+
 	public static double dotProduct(Instance i1, Instance i2)
 	{
 		double result = 0;
@@ -9,7 +9,9 @@ import java.io.IOException;
 import java.io.OutputStreamWriter;
 import java.util.ArrayList;
 import java.util.Collections;
+import java.util.ConcurrentModificationException;
 import java.util.Iterator;
+import java.util.NoSuchElementException;
 
 public class Instances implements Iterable<Instance>
 {
@@ -17,6 +19,11 @@ public class Instances implements Iterable<Instance>
 
 	private int numValues;
 
+	/**
+	 * Number of times instances were added, removed or reordered, see {@link #getModificationCount()}.
+	 */
+	private int modificationCount;
+
 	public Instances(int numValues)
 	{
 		this.numValues = numValues;
@@ -36,7 +43,21 @@ public class Instances implements Iterable<Instance>
 		this(file," ");
 	}
 
+	/**
+	 * Reads a dense or sparse (LIBSVM) file or a file in the format of {@link BinaryInstances}. Single character delimiters are parsed from a
+	 * memory-mapped buffer without creating strings.
+	 */
 	public Instances(File file, String delimiter) throws IOException
+	{
+		if(BinaryInstances.isBinary(file))
+			this.numValues = BinaryInstances.read(file, this.instances);
+		else if(InstancesReader.supports(delimiter))
+			this.numValues = InstancesReader.read(file, delimiter.charAt(0), this.instances);
+		else
+			this.readLines(file, delimiter);
+	}
+
+	private void readLines(File file, String delimiter) throws IOException
 	{
 		BufferedReader br = new BufferedReader(new FileReader(file));
 		String line;
@@ -93,8 +114,16 @@ public class Instances implements Iterable<Instance>
 	 */
 	public void shuffle(int seed)
 	{
-		java.util.Random random = new java.util.Random(seed);
+		this.shuffle(new java.util.Random(seed));
+	}
+
+	/**
+	 * Shuffles the internal Array List of instances with the random number generator of the session.
+	 */
+	public void shuffle(java.util.Random random)
+	{
 		Collections.shuffle(instances, random);
+		this.modified();
 	}
 
 	public double getMaxTarget()
@@ -169,6 +198,7 @@ public class Instances implements Iterable<Instance>
 		int maxKey = instance.getKeys()[instance.getKeys().length - 1];
 		if(maxKey > this.numValues)
 			throw new IllegalArgumentException("The instance has " + maxKey + " attributes but only " + this.numValues + " are allowed.");
+		this.modified();
 		return this.instances.add(instance);
 	}
 
@@ -185,12 +215,37 @@ public class Instances implements Iterable<Instance>
 			maxKey = Math.max(maxKey, instances.instance(i).getKeys()[instances.instance(i).getKeys().length - 1]);
 		if(maxKey > this.numValues)
 			throw new IllegalArgumentException("The instance has " + maxKey + " attributes but only " + this.numValues + " are allowed.");
+		this.modified();
 		return this.instances.addAll(instances.instances);
 	}
 
+	/**
+	 * Returns views of the first numValues values of all instances, see {@link InstanceUtils#project(Instance, int)}. No values are copied.
+	 */
+	public Instances project(int numValues)
+	{
+		Instances ret = new Instances(numValues);
+		ret.instances.ensureCapacity(this.numInstances());
+		for(Instance instance : this.instances)
+			ret.instances.add(new ProjectedInstance(instance, numValues));
+		return ret;
+	}
+
 	public boolean remove(Instance instance)
 	{
-		return this.instances.remove(instance);
+		boolean removed = this.instances.remove(instance);
+		if(removed)
+			this.modified();
+		return removed;
+	}
+
+	/**
+	 * Removes the instance at the index, which is unambiguous even if an instance was added more than once.
+	 */
+	public Instance remove(int index)
+	{
+		this.modified();
+		return this.instances.remove(index);
 	}
 
 	public Instance instance(int i)
@@ -208,6 +263,20 @@ public class Instances implements Iterable<Instance>
 		return this.numValues;
 	}
 
+	/**
+	 * Changes whenever instances are added, removed or reordered, so data derived from the instances, e.g. their squared differences, can be checked
+	 * for being stale. Subclasses that change values in place count this as a modification, too.
+	 */
+	public int getModificationCount()
+	{
+		return this.modificationCount;
+	}
+
+	protected void modified()
+	{
+		this.modificationCount++;
+	}
+
 	public void saveToLibsvm(File file) throws IOException
 	{
 		BufferedWriter bw = new BufferedWriter(new OutputStreamWriter(new FileOutputStream(file), "utf-8"));
@@ -276,10 +345,50 @@ public class Instances implements Iterable<Instance>
 		bw.close();
 	}
 
+	/**
+	 * Iterates over the instances in order. Removing through the iterator goes through {@link #remove(int)}, so subclasses see every removal.
+	 */
 	@Override
 	public Iterator<Instance> iterator()
 	{
-		return this.instances.iterator();
+		return new Iterator<Instance>()
+		{
+			private int next;
+
+			private int last = -1;
+
+			private int expectedModificationCount = getModificationCount();
+
+			@Override
+			public boolean hasNext()
+			{
+				return this.next < numInstances();
+			}
+
+			@Override
+			public Instance next()
+			{
+				if(getModificationCount() != this.expectedModificationCount)
+					throw new ConcurrentModificationException();
+				if(!this.hasNext())
+					throw new NoSuchElementException();
+				this.last = this.next++;
+				return instance(this.last);
+			}
+
+			@Override
+			public void remove()
+			{
+				if(this.last < 0)
+					throw new IllegalStateException("next() was not called since the last removal.");
+				if(getModificationCount() != this.expectedModificationCount)
+					throw new ConcurrentModificationException();
+				Instances.this.remove(this.last);
+				this.next = this.last;
+				this.last = -1;
+				this.expectedModificationCount = getModificationCount();
+			}
+		};
 	}
 
 }
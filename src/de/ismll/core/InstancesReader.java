@@ -0,0 +1,217 @@
+package de.ismll.core;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.List;
+
+/**
+ * Reads dense and sparse (LIBSVM) files through a memory-mapped buffer and parses the bytes directly into the value arrays of the instances. The
+ * result is the same as splitting every line and parsing the tokens with {@link Double#parseDouble(String)}: numbers with at most 19 significant
+ * digits whose mantissa is exactly representable and whose decimal exponent is at most 22 are converted with a single correctly rounded
+ * multiplication or division, all other tokens are handed to {@link Double#parseDouble(String)}.
+ */
+abstract class InstancesReader
+{
+	private static final double[] POWERS_OF_TEN = new double[23];
+
+	static
+	{
+		POWERS_OF_TEN[0] = 1;
+		for(int i = 1; i < POWERS_OF_TEN.length; i++)
+			POWERS_OF_TEN[i] = POWERS_OF_TEN[i - 1] * 10;
+	}
+
+	/**
+	 * Whether the delimiter can be handled by {@link #read(File, char, List)}, i.e. it is a single ASCII character that means the same as a regular
+	 * expression for {@link String#split(String)}.
+	 */
+	static boolean supports(String delimiter)
+	{
+		if(delimiter.length() != 1)
+			return false;
+		char c = delimiter.charAt(0);
+		return c < 128 && c != '\n' && c != '\r' && c != ':' && (c < '0' || c > '9') && ".$|()[]{}^?*+\\-eE".indexOf(c) < 0;
+	}
+
+	/**
+	 * Adds the instances of the file to the list. As before, the first line decides whether the file is sparse.
+	 *
+	 * @return the number of values, i.e. the largest key plus one for sparse files and the largest number of values of a line for dense files.
+	 */
+	static int read(File file, char delimiter, List<Instance> instances) throws IOException
+	{
+		RandomAccessFile raf = new RandomAccessFile(file, "r");
+		MappedByteBuffer buffer;
+		try
+		{
+			FileChannel channel = raf.getChannel();
+			if(channel.size() > Integer.MAX_VALUE)
+				throw new IOException("File " + file.getAbsolutePath() + " is too large to be mapped.");
+			buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+		}
+		finally
+		{
+			raf.close();
+		}
+
+		byte separator = (byte) delimiter;
+		int end = buffer.limit();
+		int maxKey = 0;
+		boolean firstLine = true, sparse = false;
+		for(int start = 0; start < end;)
+		{
+			int lineEnd = start;
+			while(lineEnd < end && buffer.get(lineEnd) != '\n' && buffer.get(lineEnd) != '\r')
+				lineEnd++;
+			int next = lineEnd + (lineEnd + 1 < end && buffer.get(lineEnd) == '\r' && buffer.get(lineEnd + 1) == '\n' ? 2 : 1);
+
+			if(firstLine)
+			{
+				firstLine = false;
+				for(int i = start; i < lineEnd && !sparse; i++)
+					sparse = buffer.get(i) == ':';
+			}
+
+			// Trailing empty tokens are dropped like String.split does.
+			int last = lineEnd;
+			while(last > start && buffer.get(last - 1) == separator)
+				last--;
+			int numValues = 0;
+			for(int i = start; i < last; i++)
+				if(buffer.get(i) == separator)
+					numValues++;
+
+			int tokenEnd = indexOf(buffer, separator, start, last);
+			double target = parseDouble(buffer, start, tokenEnd);
+			double[] values = new double[numValues];
+			if(sparse)
+			{
+				int[] keys = new int[numValues];
+				for(int i = 0; i < numValues; i++)
+				{
+					int tokenStart = tokenEnd + 1;
+					tokenEnd = indexOf(buffer, separator, tokenStart, last);
+					int colon = indexOf(buffer, (byte) ':', tokenStart, tokenEnd);
+					if(colon == tokenEnd)
+						throw new NumberFormatException("Missing ':' in \"" + toString(buffer, tokenStart, tokenEnd) + "\".");
+					keys[i] = parseInt(buffer, tokenStart, colon);
+					maxKey = Math.max(maxKey, keys[i] + 1);
+					values[i] = parseDouble(buffer, colon + 1, tokenEnd);
+				}
+				instances.add(new SparseInstance(target, keys, values, false));
+			}
+			else
+			{
+				for(int i = 0; i < numValues; i++)
+				{
+					int tokenStart = tokenEnd + 1;
+					tokenEnd = indexOf(buffer, separator, tokenStart, last);
+					values[i] = parseDouble(buffer, tokenStart, tokenEnd);
+				}
+				maxKey = Math.max(maxKey, numValues);
+				instances.add(new DenseInstance(target, values, false));
+			}
+			start = next;
+		}
+		return maxKey;
+	}
+
+	private static int indexOf(MappedByteBuffer buffer, byte b, int from, int to)
+	{
+		while(from < to && buffer.get(from) != b)
+			from++;
+		return from;
+	}
+
+	private static String toString(MappedByteBuffer buffer, int from, int to)
+	{
+		char[] chars = new char[to - from];
+		for(int i = from; i < to; i++)
+			chars[i - from] = (char) (buffer.get(i) & 0xFF);
+		return new String(chars);
+	}
+
+	private static int parseInt(MappedByteBuffer buffer, int from, int to)
+	{
+		if(to - from > 0 && to - from < 10)
+		{
+			int value = 0;
+			int i = from;
+			for(; i < to; i++)
+			{
+				int digit = buffer.get(i) - '0';
+				if(digit < 0 || digit > 9)
+					break;
+				value = 10 * value + digit;
+			}
+			if(i == to)
+				return value;
+		}
+		return Integer.parseInt(toString(buffer, from, to));
+	}
+
+	/**
+	 * Parses [+-]?digits[.digits][(e|E)[+-]?digits] on the fast path and everything else with {@link Double#parseDouble(String)}.
+	 */
+	static double parseDouble(MappedByteBuffer buffer, int from, int to)
+	{
+		int i = from;
+		boolean negative = false;
+		if(i < to && (buffer.get(i) == '-' || buffer.get(i) == '+'))
+			negative = buffer.get(i++) == '-';
+
+		long mantissa = 0;
+		int significantDigits = 0, exponent = 0, digits = 0;
+		boolean fraction = false;
+		for(; i < to; i++)
+		{
+			byte b = buffer.get(i);
+			if(b == '.' && !fraction)
+			{
+				fraction = true;
+				continue;
+			}
+			int digit = b - '0';
+			if(digit < 0 || digit > 9)
+				break;
+			digits++;
+			if(fraction)
+				exponent--;
+			if(mantissa != 0 || digit != 0)
+			{
+				if(++significantDigits > 19)
+					return Double.parseDouble(toString(buffer, from, to));
+				mantissa = 10 * mantissa + digit;
+			}
+		}
+		if(digits == 0)
+			return Double.parseDouble(toString(buffer, from, to));
+
+		if(i < to && (buffer.get(i) == 'e' || buffer.get(i) == 'E'))
+		{
+			i++;
+			boolean negativeExponent = false;
+			if(i < to && (buffer.get(i) == '-' || buffer.get(i) == '+'))
+				negativeExponent = buffer.get(i++) == '-';
+			int exponentStart = i, explicitExponent = 0;
+			for(; i < to && i - exponentStart < 5; i++)
+			{
+				int digit = buffer.get(i) - '0';
+				if(digit < 0 || digit > 9)
+					break;
+				explicitExponent = 10 * explicitExponent + digit;
+			}
+			if(i == exponentStart)
+				return Double.parseDouble(toString(buffer, from, to));
+			exponent += negativeExponent ? -explicitExponent : explicitExponent;
+		}
+		if(i != to || mantissa > (1L << 53) || exponent < -22 || exponent > 22)
+			return Double.parseDouble(toString(buffer, from, to));
+
+		double value = exponent < 0 ? mantissa / POWERS_OF_TEN[-exponent] : mantissa * POWERS_OF_TEN[exponent];
+		return negative ? -value : value;
+	}
+}
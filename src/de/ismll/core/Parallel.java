@@ -0,0 +1,90 @@
+package de.ismll.core;
+
+import java.util.ArrayList;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+public abstract class Parallel
+{
+	public interface Task
+	{
+		public void run(int index);
+	}
+
+	/**
+	 * Runs the task for all indices 0, ..., n - 1 on a pool of at most numThreads threads and waits until all are finished. Tasks must only write
+	 * results belonging to their own index, then the outcome does not depend on the number of threads.
+	 * 
+	 * @throws IllegalStateException
+	 *             if a task failed or the calling thread was interrupted.
+	 */
+	public static void forEach(int n, int numThreads, final Task task)
+	{
+		if(numThreads <= 1 || n <= 1)
+		{
+			forEach(n, null, task);
+			return;
+		}
+		ExecutorService pool = Executors.newFixedThreadPool(Math.min(numThreads, n));
+		try
+		{
+			forEach(n, pool, task);
+		}
+		finally
+		{
+			pool.shutdownNow();
+		}
+	}
+
+	/**
+	 * Like {@link #forEach(int, int, Task)}, but runs the tasks on a pool that is reused across calls and owned by the caller, so it is neither created
+	 * nor shut down here. Without a pool, the tasks run on the calling thread.
+	 * 
+	 * @throws IllegalStateException
+	 *             if a task failed or the calling thread was interrupted.
+	 */
+	public static void forEach(int n, ExecutorService pool, final Task task)
+	{
+		if(pool == null || n <= 1)
+		{
+			for(int i = 0; i < n; i++)
+				task.run(i);
+			return;
+		}
+		ArrayList<Future<?>> futures = new ArrayList<Future<?>>(n);
+		try
+		{
+			for(int i = 0; i < n; i++)
+			{
+				final int index = i;
+				futures.add(pool.submit(new Runnable()
+				{
+					@Override
+					public void run()
+					{
+						task.run(index);
+					}
+				}));
+			}
+			for(Future<?> future : futures)
+				future.get();
+		}
+		catch(InterruptedException e)
+		{
+			Thread.currentThread().interrupt();
+			throw new IllegalStateException("Interrupted while waiting for parallel tasks.", e);
+		}
+		catch(ExecutionException e)
+		{
+			throw new IllegalStateException("A parallel task failed.", e.getCause());
+		}
+		finally
+		{
+			// Tasks of a failed call must not keep running on the shared pool.
+			for(Future<?> future : futures)
+				future.cancel(true);
+		}
+	}
+}
@@ -0,0 +1,103 @@
+package de.ismll.core;
+
+import java.util.Arrays;
+
+/**
+ * View of the first k values of another instance. The values are not copied, so changes of the underlying instance are visible. The target is the
+ * target of the underlying instance until a different one is set.
+ */
+class ProjectedInstance extends Instance
+{
+	private final Instance instance;
+
+	private final int k;
+
+	/**
+	 * Keys of the underlying instance smaller than k.
+	 */
+	private final int[] keys;
+
+	private boolean ownTarget = false;
+
+	ProjectedInstance(Instance instance, int k)
+	{
+		super(0, null, false);
+		this.instance = instance;
+		this.k = k;
+		int[] keys = instance.getKeys();
+		if(instance.getValueArray() != null && keys.length >= k)
+			this.keys = DenseInstance.getIndices(k);
+		else
+		{
+			int length = 0;
+			while(length < keys.length && keys[length] < k)
+				length++;
+			this.keys = Arrays.copyOf(keys, length);
+		}
+	}
+
+	ProjectedInstance(Instance instance, int k, double target)
+	{
+		this(instance, k);
+		this.setTarget(target);
+	}
+
+	@Override
+	public double getValue(int index)
+	{
+		if(index >= this.k)
+			throw new IndexOutOfBoundsException("Index " + index + " is not part of a projection to " + this.k + " values.");
+		return this.instance.getValue(index);
+	}
+
+	/**
+	 * Returns a copy of the projected values, changes have no effect. Use {@link #getValueArray()} to read dense values without copying.
+	 */
+	@Override
+	public double[] getValues()
+	{
+		return Arrays.copyOf(this.instance.getValues(), this.keys.length);
+	}
+
+	@Override
+	public void setValue(double value, int index)
+	{
+		if(index >= this.k)
+			throw new IndexOutOfBoundsException("Index " + index + " is not part of a projection to " + this.k + " values.");
+		this.instance.setValue(value, index);
+	}
+
+	@Override
+	public int[] getKeys()
+	{
+		return this.keys;
+	}
+
+	@Override
+	public double[] getValueArray()
+	{
+		return this.keys.length == this.k ? this.instance.getValueArray() : null;
+	}
+
+	@Override
+	public int getOffset()
+	{
+		return this.instance.getOffset();
+	}
+
+	@Override
+	public double target()
+	{
+		return this.ownTarget ? super.target() : this.instance.target();
+	}
+
+	/**
+	 * Sets the target of the projection only, the underlying instance keeps its target.
+	 */
+	@Override
+	public void setTarget(double target)
+	{
+		this.ownTarget = true;
+		super.setTarget(target);
+	}
+}
@@ -1,5 +1,9 @@
 package de.ismll.core;
 
+/**
+ * Random number generator shared by the whole JVM. Concurrent sessions draw from the same sequence and disturb each other, so code that runs in a
+ * session should use a {@link java.util.Random} of its own instead.
+ */
 public abstract class Random
 {
 	private static java.util.Random random = new java.util.Random(0);
@@ -0,0 +1,42 @@
+package de.ismll.core;
+
+/**
+ * Mean and standard deviation of a stream of values, updated in O(1) per value with Welford's algorithm. The standard deviation is the
+ * bias-corrected sample standard deviation, 0 for a single value and NaN for none.
+ */
+public class RunningStatistics
+{
+	private long n;
+
+	private double mean;
+
+	/**
+	 * Sum of the squared differences from the current mean.
+	 */
+	private double m2;
+
+	public void add(double value)
+	{
+		this.n++;
+		double delta = value - this.mean;
+		this.mean += delta / this.n;
+		this.m2 += delta * (value - this.mean);
+	}
+
+	public long getN()
+	{
+		return this.n;
+	}
+
+	public double getMean()
+	{
+		return this.n == 0 ? Double.NaN : this.mean;
+	}
+
+	public double getStandardDeviation()
+	{
+		if(this.n == 0)
+			return Double.NaN;
+		return this.n == 1 ? 0 : Math.sqrt(this.m2 / (this.n - 1));
+	}
+}
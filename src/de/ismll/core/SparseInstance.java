@@ -8,7 +8,12 @@ public class SparseInstance extends Instance
 
 	SparseInstance(double target, int[] keys, double[] values)
 	{
-		super(target, values);
+		this(target, keys, values, true);
+	}
+
+	SparseInstance(double target, int[] keys, double[] values, boolean copy)
+	{
+		super(target, values, copy);
 		this.keys = keys;
 	}
 
@@ -1,25 +1,38 @@
 package de.ismll.core.regression;
 
+import java.nio.ByteBuffer;
+import java.nio.DoubleBuffer;
+import java.util.Arrays;
+import java.util.List;
 import java.util.logging.Level;
 
-import org.apache.commons.math3.linear.ArrayRealVector;
-import org.apache.commons.math3.linear.CholeskyDecomposition;
-import org.apache.commons.math3.linear.MatrixUtils;
-import org.apache.commons.math3.linear.NonPositiveDefiniteMatrixException;
-import org.apache.commons.math3.linear.RealMatrix;
-import org.apache.commons.math3.linear.RealVector;
-
+import de.ismll.core.CholeskyFactor;
 import de.ismll.core.Instance;
+import de.ismll.core.InstanceUtils;
 import de.ismll.core.Instances;
 import de.ismll.core.Logger;
 import de.ismll.kernel.Kernel;
+import de.ismll.kernel.SEARDKernel;
 import de.ismll.kernel.SEKernel;
 
 public class GaussianProcessRegression implements Regression
 {
-	private RealVector alpha;
+	private double[] alpha;
+
+	/**
+	 * Cholesky factor of K. Its rows are packed, so a new observation only appends a row.
+	 */
+	private CholeskyFactor L;
+
+	/**
+	 * Whether L is shared with other models trained by {@link #trainShared(Instances[], Kernel, int)}, in which case it is copied before it is extended.
+	 */
+	private boolean sharedFactor = false;
 
-	private RealMatrix L;
+	/**
+	 * Solution of L * beta = y. Kept to extend alpha cheaply in {@link #onlineUpdate(Instance)}.
+	 */
+	private double[] beta;
 
 	public Instances instances;
 
@@ -27,28 +40,39 @@ public class GaussianProcessRegression implements Regression
 
 	private boolean learnKernelParameters = false;
 
-	private RealVector y;
+	private double[] y;
 
 	private int epochs = 10;
 
-	private double jitter = 1E-8;
+	private double jitter = DEFAULT_JITTER;
+
+	private static final double DEFAULT_JITTER = 1E-8;
+
+	/**
+	 * Maximum number of instances predicted together by {@link #predictWithUncertainty(List)}. Bounds the size of the kernel matrix between training and
+	 * test instances.
+	 */
+	private static final int BATCH_SIZE = 512;
+
+	private static final int SNAPSHOT_MAGIC = 0x54535447;
+
+	private static final int SNAPSHOT_VERSION = 1;
+
+	private static final int SNAPSHOT_SEARD_KERNEL = 0;
+
+	private static final int SNAPSHOT_SE_KERNEL = 1;
 
 	@Override
 	public void train(Instances instances)
 	{
 		this.instances = instances;
 
-		double[] t = new double[instances.numInstances()];
-		for(int i = 0; i < instances.numInstances(); i++)
-			t[i] = instances.instance(i).target();
 		if(this.learnKernelParameters)
 		{
 			// Logger.info("Learning Kernel parameters for " + this.epochs + " epochs.");
 			for(int iter = 0; iter < this.epochs; iter++)
 			{
-				RealMatrix K = MatrixUtils.createRealMatrix(this.kernel.computeKernel(this.instances));
-				CholeskyDecomposition cd = this.choleskyDecomposition(K);
-				this.L = cd.getL();
+				this.L = new CholeskyFactor(this.kernel.computePackedKernel(this.instances), instances.numInstances(), this.jitter);
 				this.alpha = this.estimateAlpha();
 
 				// To avoid computing the negative log-likelihood if not necessary.
@@ -57,72 +81,127 @@ public class GaussianProcessRegression implements Regression
 					if(iter % 10 == 9)
 						Logger.fine("Negative log-likelihood in epoch " + (iter + 1) + " of " + this.epochs + ": " + this.computeNegativeLogLikelihood());
 				}
-				this.kernel.updateKernelParameters(instances, K, alpha, iter == 0);
+				this.kernel.updateKernelParameters(instances, this.L, this.alpha, iter == 0);
 			}
 		}
 
 		// Logger.info("Kernel information:\n" + this.kernel.toString());
 
-		RealMatrix K = MatrixUtils.createRealMatrix(this.kernel.computeKernel(this.instances));
+		this.factorize();
+	}
 
-		CholeskyDecomposition cd = this.choleskyDecomposition(K);
-		this.L = cd.getL();
+	/**
+	 * Computes the Cholesky factor and alpha for the current instances and kernel parameters. The kernel does not keep its cache afterwards.
+	 */
+	private void factorize()
+	{
+		this.sharedFactor = false;
+		this.L = new CholeskyFactor(this.kernel.computePackedKernel(this.instances), this.instances.numInstances(), this.jitter);
+		this.kernel.release();
 		this.alpha = this.estimateAlpha();
 	}
 
-	private CholeskyDecomposition choleskyDecomposition(RealMatrix K)
+	/**
+	 * Trains one model per task with a single kernel whose parameters are learned by summing the log-likelihood gradients of all tasks. All tasks must
+	 * have the same inputs, so the kernel matrix is factorized only once per epoch and all alphas are obtained from one triangular solve with multiple
+	 * right-hand sides. The returned models share the kernel and the Cholesky factor.
+	 * 
+	 * @throws IllegalArgumentException
+	 *             if the tasks do not have identical inputs.
+	 */
+	public static GaussianProcessRegression[] trainShared(Instances[] tasks, Kernel kernel, int epochs)
 	{
-		CholeskyDecomposition cd = null;
-		boolean passed = false;
-		int numNotPassed = 0;
-		while(!passed && numNotPassed < 10)
+		Instances inputs = tasks[0];
+		int n = inputs.numInstances();
+		int m = tasks.length;
+		for(int t = 1; t < m; t++)
 		{
-			try
-			{
-				for(int i = 0; i < K.getRowDimension(); i++)
-					K.setEntry(i, i, K.getEntry(i, i) + this.jitter);
-				cd = new CholeskyDecomposition(K);
-				passed = true;
-			}
-			catch(NonPositiveDefiniteMatrixException e)
-			{
-				this.jitter *= 1.01;
-			}
-			numNotPassed++;
+			if(tasks[t].numInstances() != n || tasks[t].numValues() != inputs.numValues())
+				throw new IllegalArgumentException("Tasks must have identical inputs to share a kernel.");
+			for(int i = 0; i < n; i++)
+				for(int j = 0; j < inputs.numValues(); j++)
+					if(tasks[t].instance(i).getValue(j) != inputs.instance(i).getValue(j))
+						throw new IllegalArgumentException("Tasks must have identical inputs to share a kernel.");
 		}
-		if(!passed)
+
+		// Targets of all tasks as the columns of a row-major n x m matrix.
+		double[] Y = new double[n * m];
+		for(int t = 0; t < m; t++)
+			for(int i = 0; i < n; i++)
+				Y[i * m + t] = tasks[t].instance(i).target();
+
+		CholeskyFactor L;
+		double[] B;
+		for(int iter = 0;; iter++)
 		{
-			throw new IllegalArgumentException("Adding Jitter did not work.");
+			L = new CholeskyFactor(kernel.computePackedKernel(inputs), n, DEFAULT_JITTER);
+			B = Arrays.copyOf(Y, Y.length);
+			L.solveLower(B, m);
+			if(iter == epochs)
+				break;
+			double[] A = Arrays.copyOf(B, B.length);
+			L.solveUpper(A, m);
+			kernel.updateKernelParameters(inputs, Kernel.getAATMinusKInverse(A, m, L), iter == 0);
 		}
-		this.jitter = 1E-8;
-		return cd;
+		kernel.release();
+		double[] A = Arrays.copyOf(B, B.length);
+		L.solveUpper(A, m);
+
+		GaussianProcessRegression[] models = new GaussianProcessRegression[m];
+		for(int t = 0; t < m; t++)
+		{
+			GaussianProcessRegression gp = new GaussianProcessRegression();
+			gp.kernel = kernel;
+			gp.learnKernelParameters = true;
+			gp.epochs = epochs;
+			gp.instances = tasks[t];
+			gp.L = L;
+			gp.sharedFactor = true;
+			gp.y = new double[n];
+			gp.beta = new double[n];
+			gp.alpha = new double[n];
+			for(int i = 0; i < n; i++)
+			{
+				gp.y[i] = Y[i * m + t];
+				gp.beta[i] = B[i * m + t];
+				gp.alpha[i] = A[i * m + t];
+			}
+			models[t] = gp;
+		}
+		return models;
 	}
 
-	private RealVector estimateAlpha()
+	private double[] estimateAlpha()
 	{
-		double[] yArray = new double[instances.numInstances()];
+		this.y = new double[instances.numInstances()];
 		for(int i = 0; i < instances.numInstances(); i++)
-			yArray[i] = instances.instance(i).target();
+			this.y[i] = instances.instance(i).target();
 
-		RealVector alpha = new ArrayRealVector(yArray);
-		this.y = new ArrayRealVector(yArray);
-		MatrixUtils.solveLowerTriangularSystem(this.L, alpha);
-		MatrixUtils.solveUpperTriangularSystem(this.L.transpose(), alpha);
+		this.beta = Arrays.copyOf(this.y, this.y.length);
+		this.L.solveLower(this.beta);
+		double[] alpha = Arrays.copyOf(this.beta, this.beta.length);
+		this.L.solveUpper(alpha);
 		return alpha;
 	}
 
 	private double computeNegativeLogLikelihood()
 	{
-		double logDeterminant = 0;
-		for(int i = 0; i < this.L.getColumnDimension(); i++)
-			logDeterminant += Math.log(this.L.getEntry(i, i)) / Math.log(Math.E);
-		return -0.5 * this.y.dotProduct(alpha) - logDeterminant - this.L.getColumnDimension() / 2 * Math.log(2 * Math.PI) / Math.log(Math.E);
+		double logDeterminant = this.L.sumLogDiagonal();
+		return -0.5 * dotProduct(this.y, this.alpha, this.y.length) - logDeterminant - this.L.getDimension() / 2 * Math.log(2 * Math.PI) / Math.log(Math.E);
+	}
+
+	private static double dotProduct(double[] a, double[] b, int n)
+	{
+		double result = 0;
+		for(int i = 0; i < n; i++)
+			result += a[i] * b[i];
+		return result;
 	}
 
 	@Override
 	public double predict(Instance instance)
 	{
-		return this.getKStar(instance).dotProduct(this.alpha);
+		return dotProduct(this.getKStar(instance), this.alpha, this.alpha.length);
 	}
 
 	public double[] predictWithUncertainty(Instance instance)
@@ -130,37 +209,241 @@ public class GaussianProcessRegression implements Regression
 		if(this.instances == null)
 			return new double[] { 0, Double.POSITIVE_INFINITY };
 		double[] pred = new double[2];
-		ArrayRealVector kStar = this.getKStar(instance);
-		pred[0] = kStar.dotProduct(this.alpha);
-		MatrixUtils.solveLowerTriangularSystem(this.L, kStar);
-		pred[1] = Math.sqrt(-kStar.dotProduct(kStar) + this.kernelFunction(instance, instance));
+		double[] kStar = this.getKStar(instance);
+		pred[0] = dotProduct(kStar, this.alpha, this.alpha.length);
+		this.L.solveLower(kStar);
+		pred[1] = Math.sqrt(-dotProduct(kStar, kStar, kStar.length) + this.varianceFunction(instance));
+		return pred;
+	}
+
+	/**
+	 * Predicts mean and standard deviation for all instances at once. The kernel values between training and test instances are collected in one
+	 * matrix, so the uncertainty needs a single triangular solve with multiple right-hand sides instead of one solve per instance.
+	 * 
+	 * @return an array where the first entry contains the means and the second the standard deviations.
+	 */
+	public double[][] predictWithUncertainty(List<Instance> instances)
+	{
+		int m = instances.size();
+		double[][] pred = new double[2][m];
+		if(this.instances == null)
+		{
+			Arrays.fill(pred[1], Double.POSITIVE_INFINITY);
+			return pred;
+		}
+		int n = this.instances.numInstances();
+		double[] kStar = new double[n * Math.min(m, BATCH_SIZE)];
+		for(int batchStart = 0; batchStart < m; batchStart += BATCH_SIZE)
+		{
+			int batch = Math.min(BATCH_SIZE, m - batchStart);
+			for(int i = 0; i < n; i++)
+			{
+				Instance trainInstance = this.instances.instance(i);
+				double a = this.alpha[i];
+				for(int c = 0; c < batch; c++)
+				{
+					double k = this.kernelFunction(trainInstance, instances.get(batchStart + c));
+					kStar[i * batch + c] = k;
+					pred[0][batchStart + c] += a * k;
+				}
+			}
+			this.L.solveLower(kStar, batch);
+			double[] variance = new double[batch];
+			for(int i = 0; i < n; i++)
+				for(int c = 0; c < batch; c++)
+					variance[c] += kStar[i * batch + c] * kStar[i * batch + c];
+			for(int c = 0; c < batch; c++)
+			{
+				Instance instance = instances.get(batchStart + c);
+				pred[1][batchStart + c] = Math.sqrt(-variance[c] + this.varianceFunction(instance));
+			}
+		}
 		return pred;
 	}
 
+	/**
+	 * Adds the instance to the training data without refitting. The Cholesky factor is extended by one row in O(n^2) and alpha is updated from the
+	 * extended forward solution, so the kernel parameters stay as they are. Falls back to a full factorization if the extended kernel matrix is
+	 * numerically not positive definite.
+	 */
 	public void onlineUpdate(Instance instance)
 	{
 		if(this.instances == null)
 			throw new IllegalArgumentException("Model was not trained before so it cannot be updated");
-		RealVector l = this.getKStar(instance);
-		MatrixUtils.solveLowerTriangularSystem(this.L, l);
-		double lStar = Math.sqrt(this.kernelFunction(instance, instance) - l.dotProduct(l));
-		RealMatrix L_new = MatrixUtils.createRealMatrix(this.L.getRowDimension() + 1, this.L.getColumnDimension() + 1);
-		L_new.setSubMatrix(this.L.getData(), 0, 0);
-		L_new.setEntry(L_new.getRowDimension() - 1, L_new.getColumnDimension() - 1, lStar);
-		L_new.setSubMatrix(new double[][] { l.toArray() }, L_new.getRowDimension() - 1, 0);
-		this.L = L_new;
+		int n = this.L.getDimension();
+		double[] l = this.getKStar(instance);
+		this.L.solveLower(l);
+		double schurComplement = this.varianceFunction(instance) + this.jitter - dotProduct(l, l, n);
 		this.instances.add(instance);
-		this.alpha = this.estimateAlpha();
+		if(!(schurComplement > 0))
+		{
+			this.factorize();
+			return;
+		}
+		double lStar = Math.sqrt(schurComplement);
+		this.ownFactor();
+		this.L.append(l, lStar);
+
+		this.y = Arrays.copyOf(this.y, n + 1);
+		this.y[n] = instance.target();
+		this.beta = Arrays.copyOf(this.beta, n + 1);
+		this.beta[n] = (this.y[n] - dotProduct(l, this.beta, n)) / lStar;
+		this.alpha = Arrays.copyOf(this.beta, n + 1);
+		this.L.solveUpper(this.alpha);
 	}
 
-	private ArrayRealVector getKStar(Instance instance)
+	/**
+	 * Removes all instances from the n-th on, e.g. to undo {@link #onlineUpdate(Instance)}. The leading rows of the Cholesky factor and of the forward
+	 * solution stay valid, so only alpha has to be recomputed in O(n^2).
+	 */
+	public void truncate(int n)
+	{
+		if(this.instances == null)
+			throw new IllegalArgumentException("Model was not trained before so it cannot be truncated");
+		if(n < 0 || n > this.L.getDimension())
+			throw new IllegalArgumentException("Cannot truncate a model with " + this.L.getDimension() + " instances to " + n + " instances.");
+		for(int i = this.instances.numInstances() - 1; i >= n; i--)
+			this.instances.remove(i);
+		this.ownFactor();
+		this.L.truncate(n);
+		this.y = Arrays.copyOf(this.y, n);
+		this.beta = Arrays.copyOf(this.beta, n);
+		this.alpha = Arrays.copyOf(this.beta, n);
+		this.L.solveUpper(this.alpha);
+	}
+
+	/**
+	 * Copies the Cholesky factor before it is modified if it is shared with other models.
+	 */
+	private void ownFactor()
+	{
+		if(this.sharedFactor)
+		{
+			int n = this.L.getDimension();
+			this.L = CholeskyFactor.wrap(Arrays.copyOf(this.L.getData(), CholeskyFactor.size(n)), n);
+			this.sharedFactor = false;
+		}
+	}
+
+	/**
+	 * Serializes the trained model into a compact binary snapshot: a header (magic number, version, kernel type), the kernel parameters, the number of
+	 * instances n and of values d, the dense training inputs (n * d values, row by row), the targets, the packed Cholesky factor and alpha. Only models
+	 * with an {@link SEARDKernel} or {@link SEKernel} can be serialized.
+	 */
+	public ByteBuffer toByteBuffer()
+	{
+		if(this.instances == null)
+			throw new IllegalArgumentException("Model was not trained before so it cannot be serialized.");
+		double[] kernelParameters;
+		int kernelType;
+		if(this.kernel instanceof SEARDKernel)
+		{
+			SEARDKernel k = (SEARDKernel) this.kernel;
+			kernelType = SNAPSHOT_SEARD_KERNEL;
+			kernelParameters = new double[k.getSigmaL().length + 2];
+			kernelParameters[0] = k.getSigmaF();
+			kernelParameters[1] = k.getSigmaY();
+			System.arraycopy(k.getSigmaL(), 0, kernelParameters, 2, k.getSigmaL().length);
+		}
+		else if(this.kernel instanceof SEKernel)
+		{
+			SEKernel k = (SEKernel) this.kernel;
+			kernelType = SNAPSHOT_SE_KERNEL;
+			kernelParameters = new double[] { k.getSigma_f(), k.getSigma_y(), k.getSigma_l() };
+		}
+		else
+			throw new IllegalArgumentException("Kernel " + this.kernel.getClass().getName() + " cannot be serialized.");
+
+		int n = this.instances.numInstances();
+		int d = this.instances.numValues();
+		ByteBuffer buffer = ByteBuffer.allocate(4 * 6 + 8 * (kernelParameters.length + n * d + n + CholeskyFactor.size(n) + n));
+		buffer.putInt(SNAPSHOT_MAGIC).putInt(SNAPSHOT_VERSION).putInt(kernelType).putInt(kernelParameters.length);
+		buffer.putInt(n).putInt(d);
+		DoubleBuffer doubles = buffer.asDoubleBuffer();
+		doubles.put(kernelParameters);
+		for(int i = 0; i < n; i++)
+			for(int j = 0; j < d; j++)
+				doubles.put(this.instances.instance(i).getValue(j));
+		doubles.put(this.y, 0, n);
+		doubles.put(this.L.getData(), 0, CholeskyFactor.size(n));
+		doubles.put(this.alpha, 0, n);
+		buffer.position(buffer.capacity());
+		buffer.flip();
+		return buffer;
+	}
+
+	/**
+	 * Restores a model from a snapshot created by {@link #toByteBuffer()}. Neither the kernel matrix nor its factorization are recomputed. All values
+	 * are copied out of the buffer, so the restored model needs as much heap as a trained one and the buffer may be released afterwards.
+	 * 
+	 * @throws IllegalArgumentException
+	 *             if the buffer does not contain a valid snapshot.
+	 */
+	public static GaussianProcessRegression fromByteBuffer(ByteBuffer buffer)
+	{
+		if(buffer.remaining() < 4 * 6 || buffer.getInt() != SNAPSHOT_MAGIC || buffer.getInt() != SNAPSHOT_VERSION)
+			throw new IllegalArgumentException("Not a Gaussian process snapshot.");
+		int kernelType = buffer.getInt();
+		double[] kernelParameters = new double[buffer.getInt()];
+		int n = buffer.getInt();
+		int d = buffer.getInt();
+		if(buffer.remaining() != 8 * (kernelParameters.length + n * d + n + CholeskyFactor.size(n) + n))
+			throw new IllegalArgumentException("Gaussian process snapshot is truncated.");
+		DoubleBuffer doubles = buffer.asDoubleBuffer();
+		doubles.get(kernelParameters);
+
+		GaussianProcessRegression gp = new GaussianProcessRegression();
+		if(kernelType == SNAPSHOT_SEARD_KERNEL)
+		{
+			SEARDKernel k = new SEARDKernel(kernelParameters.length - 2);
+			k.setSigmaF(kernelParameters[0]);
+			k.setSigmaY(kernelParameters[1]);
+			k.setSigmaL(Arrays.copyOfRange(kernelParameters, 2, kernelParameters.length));
+			gp.kernel = k;
+		}
+		else if(kernelType == SNAPSHOT_SE_KERNEL)
+		{
+			SEKernel k = new SEKernel();
+			k.setSigma_f(kernelParameters[0]);
+			k.setSigma_y(kernelParameters[1]);
+			k.setSigma_l(kernelParameters[2]);
+			gp.kernel = k;
+		}
+		else
+			throw new IllegalArgumentException("Unknown kernel type " + kernelType + " in Gaussian process snapshot.");
+
+		double[] values = new double[d];
+		double[] targets = new double[n];
+		int position = doubles.position();
+		doubles.position(position + n * d);
+		doubles.get(targets);
+		gp.instances = new Instances(d);
+		for(int i = 0; i < n; i++)
+		{
+			doubles.position(position + i * d);
+			doubles.get(values);
+			gp.instances.add(InstanceUtils.createDenseInstance(targets[i], values));
+		}
+		doubles.position(position + n * d + n);
+		double[] packedL = new double[CholeskyFactor.size(n)];
+		doubles.get(packedL);
+		gp.L = CholeskyFactor.wrap(packedL, n);
+		gp.alpha = new double[n];
+		doubles.get(gp.alpha);
+		gp.y = targets;
+		gp.beta = Arrays.copyOf(targets, n);
+		gp.L.solveLower(gp.beta);
+		return gp;
+	}
+
+	private double[] getKStar(Instance instance)
 	{
 		double[] kStarArray = new double[this.instances.numInstances()];
 		for(int i = 0; i < this.instances.numInstances(); i++)
 		{
 			kStarArray[i] = this.kernelFunction(this.instances.instance(i), instance);
 		}
-		return new ArrayRealVector(kStarArray, false);
+		return kStarArray;
 	}
 
 	private double kernelFunction(Instance inst1, Instance inst2)
@@ -168,6 +451,14 @@ public class GaussianProcessRegression implements Regression
 		return this.kernel.computeValue(inst1, inst2);
 	}
 
+	/**
+	 * Prior variance of the instance including the noise, i.e. its diagonal entry if it was added to the training instances.
+	 */
+	private double varianceFunction(Instance instance)
+	{
+		return this.kernel.computeValue(instance, instance) + this.kernel.getNoiseVariance();
+	}
+
 	public Kernel getKernel()
 	{
 		return this.kernel;
@@ -211,7 +502,7 @@ public class GaussianProcessRegression implements Regression
 
 	public double[] getAlpha()
 	{
-		return this.alpha.toArray();
+		return Arrays.copyOf(this.alpha, this.alpha.length);
 	}
 	
 	public void updateLabels(double[] labels) {
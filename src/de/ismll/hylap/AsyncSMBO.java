@@ -0,0 +1,117 @@
+package de.ismll.hylap;
+
+import java.util.ArrayList;
+
+import de.ismll.core.Instance;
+import de.ismll.core.Parallel;
+
+/**
+ * Asynchronous ask/tell front end of {@link SMBO}. Configurations are suggested while others are still being evaluated and results are accepted in
+ * the order they arrive, so a pool of workers never waits for a round to finish. Pending configurations are penalized through fantasized
+ * observations, see {@link SMBO#ask(int)}. All calls are synchronized, so {@link #ask()} and {@link #tell(Instance, double)} can be called from any
+ * thread.
+ */
+public class AsyncSMBO
+{
+	private SMBO smbo;
+
+	private int strategy;
+
+	private int maxEvaluations = Integer.MAX_VALUE;
+
+	private int asked;
+
+	private long start = System.nanoTime();
+
+	/**
+	 * Best accuracy, rank and elapsed time in milliseconds after every told result.
+	 */
+	private ArrayList<double[]> trace = new ArrayList<double[]>();
+
+	/**
+	 * @param strategy
+	 *            Fantasy strategy of {@link SMBO#ask(int)}.
+	 */
+	public AsyncSMBO(SMBO smbo, int strategy)
+	{
+		this.smbo = smbo;
+		this.strategy = strategy;
+	}
+
+	/**
+	 * Returns the next configuration to evaluate or null if the budget is used up or all configurations were suggested.
+	 */
+	public synchronized Instance ask()
+	{
+		if(this.asked >= this.maxEvaluations)
+			return null;
+		Instance x = this.smbo.ask(this.strategy);
+		if(x != null)
+			this.asked++;
+		return x;
+	}
+
+	public synchronized void tell(Instance x, double target)
+	{
+		this.smbo.tell(x, target);
+		this.trace.add(new double[] { this.smbo.getBestAccuracy(), this.smbo.getBestRank(), (double) (System.nanoTime() - this.start) / 1000000 });
+	}
+
+	/**
+	 * Evaluates up to maxEvaluations configurations with numWorkers workers. Every worker asks for a configuration, evaluates it and tells the result
+	 * until no configuration is left, so all workers are busy as long as there are configurations to suggest.
+	 *
+	 * @throws IllegalStateException
+	 *             if an evaluation failed.
+	 */
+	public void run(final Evaluator evaluator, int maxEvaluations, int numWorkers)
+	{
+		synchronized(this)
+		{
+			this.maxEvaluations = this.asked + maxEvaluations;
+		}
+		Parallel.forEach(numWorkers, numWorkers, new Parallel.Task()
+		{
+			@Override
+			public void run(int worker)
+			{
+				for(Instance x = ask(); x != null; x = ask())
+				{
+					double target;
+					try
+					{
+						target = evaluator.evaluate(x);
+					}
+					catch(RuntimeException e)
+					{
+						// Stop handing out configurations, the other workers finish their current evaluation.
+						synchronized(AsyncSMBO.this)
+						{
+							AsyncSMBO.this.maxEvaluations = 0;
+						}
+						throw e;
+					}
+					tell(x, target);
+				}
+			}
+		});
+	}
+
+	public synchronized int numPending()
+	{
+		return this.smbo.getPending().size();
+	}
+
+	/**
+	 * Returns best accuracy, best rank and elapsed time in milliseconds after the i-th told result.
+	 */
+	public synchronized double[] getTrace(int i)
+	{
+		return this.trace.get(i).clone();
+	}
+
+	public synchronized int numTold()
+	{
+		return this.trace.size();
+	}
+}
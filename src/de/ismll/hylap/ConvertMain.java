@@ -0,0 +1,53 @@
+package de.ismll.hylap;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.HashMap;
+
+import de.ismll.core.BinaryInstances;
+import de.ismll.core.Instances;
+import de.ismll.core.Logger;
+
+/**
+ * Converts the text meta-data sets of a folder into the binary columnar format of {@link BinaryInstances}. The converted folder can be passed to
+ * {@link SMBOMain} instead of the text folder.
+ */
+public class ConvertMain
+{
+	public static void help()
+	{
+		System.out
+				.println("============= Mandatory Parameters =============\n"
+						+ "-f\t\tPath to the folder where your datasets are stored.\n"
+						+ "-o\t\tPath to the folder where the converted datasets are written to.\n"
+						+ "-hpRange\tNumber of hyperparameters (SVM: 6, Weka: 103)\n"
+						+ "\n============= Optional Parameters =============\n"
+						+ "-delimiter\tDelimiter of the values (default: \" \")"
+						);
+		System.exit(0);
+	}
+
+	public static void main(String[] args) throws IOException
+	{
+		HashMap<String, String> argsMap = new HashMap<String, String>();
+		for(int i = 0; i < args.length; i++)
+			argsMap.put(args[i], args[++i]);
+
+		if(!argsMap.containsKey("-f") || !argsMap.containsKey("-o") || !argsMap.containsKey("-hpRange"))
+			help();
+		File outputFolder = new File(argsMap.get("-o"));
+		if(!outputFolder.isDirectory() && !outputFolder.mkdirs())
+			throw new IOException("Folder " + outputFolder.getAbsolutePath() + " cannot be created.");
+		int numHyperparameters = Integer.parseInt(argsMap.get("-hpRange"));
+		String delimiter = argsMap.containsKey("-delimiter") ? argsMap.get("-delimiter") : " ";
+
+		for(File file : new File(argsMap.get("-f")).listFiles())
+		{
+			if(!file.isFile())
+				continue;
+			Instances instances = new Instances(file, delimiter);
+			BinaryInstances.write(instances, numHyperparameters, new File(outputFolder, file.getName()));
+			Logger.info("Converted " + file.getName() + " with " + instances.numInstances() + " instances.");
+		}
+	}
+}
@@ -0,0 +1,14 @@
+package de.ismll.hylap;
+
+import de.ismll.core.Instance;
+
+/**
+ * Evaluates hyperparameter configurations, e.g. by training and validating a model. Implementations are called by several workers at once.
+ */
+public interface Evaluator
+{
+	/**
+	 * Returns the target, e.g. the validation accuracy, of the configuration. Blocks until the evaluation is finished.
+	 */
+	public double evaluate(Instance configuration);
+}
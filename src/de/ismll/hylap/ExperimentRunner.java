@@ -0,0 +1,303 @@
+package de.ismll.hylap;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Random;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+import de.ismll.core.DenseInstances;
+import de.ismll.core.Instances;
+import de.ismll.core.Logger;
+import de.ismll.core.Parallel;
+import de.ismll.core.RunningStatistics;
+import de.ismll.hylap.acquisitionFunction.ExpectedImprovement;
+import de.ismll.hylap.surrogateModel.BaseModelBank;
+import de.ismll.hylap.surrogateModel.PredictionTable;
+import de.ismll.hylap.surrogateModel.TwoStageSurrogate;
+
+/**
+ * Runs repetitions of SMBO for several settings of TST on several test data sets concurrently on a pool of threads. Every repetition has its own
+ * random number generator seeded by {@link #getSeed(long, int)}, so its result does not depend on the other repetitions, the order of execution or
+ * the number of threads. Neither the base GPs nor their predictions depend on the setting, so the predictions of the bank for a test data set are
+ * computed once and shared by all settings and repetitions.
+ */
+public class ExperimentRunner
+{
+	private BaseModelBank bank;
+
+	/**
+	 * Surrogate, "tst-r" or "tst-m", and bandwidth of every setting.
+	 */
+	private ArrayList<String> surrogates = new ArrayList<String>();
+
+	private ArrayList<Double> bandwidths = new ArrayList<Double>();
+
+	private int maxTries;
+
+	private int numThreads;
+
+	private int batchSize = 1;
+
+	private int fantasy = SMBO.KRIGING_BELIEVER;
+
+	private int numWorkers = 0;
+
+	private double duration = 0;
+
+	public ExperimentRunner(BaseModelBank bank, int maxTries, int numThreads)
+	{
+		this.bank = bank;
+		this.maxTries = maxTries;
+		this.numThreads = numThreads;
+	}
+
+	/**
+	 * Adds a setting to evaluate.
+	 *
+	 * @param surrogate
+	 *            "tst-r" or "tst-m".
+	 * @return the index of the setting in the results.
+	 * @throws IllegalArgumentException
+	 *             if the surrogate is unknown or the bandwidth is not positive.
+	 */
+	public int addSetting(String surrogate, double bandwidth)
+	{
+		if(!surrogate.equals("tst-m") && !surrogate.equals("tst-r"))
+			throw new IllegalArgumentException("Unknown surrogate function \"" + surrogate + "\"");
+		if(!(bandwidth > 0))
+			throw new IllegalArgumentException("Bandwidth not set or not positive.");
+		this.surrogates.add(surrogate);
+		this.bandwidths.add(bandwidth);
+		return this.surrogates.size() - 1;
+	}
+
+	public int numSettings()
+	{
+		return this.surrogates.size();
+	}
+
+	public String getSurrogate(int setting)
+	{
+		return this.surrogates.get(setting);
+	}
+
+	public double getBandwidth(int setting)
+	{
+		return this.bandwidths.get(setting);
+	}
+
+	/**
+	 * Suggests and evaluates candidates in rounds of batchSize, see {@link SMBO#iterateBatch(int, int)}.
+	 */
+	public void setBatch(int batchSize, int fantasy)
+	{
+		this.batchSize = batchSize;
+		this.fantasy = fantasy;
+	}
+
+	/**
+	 * Evaluates asynchronously with numWorkers workers that replay the targets of the test data set, see {@link AsyncSMBO} and
+	 * {@link ReplayEvaluator}. 0 workers evaluate synchronously.
+	 */
+	public void setAsync(int numWorkers, double duration)
+	{
+		this.numWorkers = numWorkers;
+		this.duration = duration;
+	}
+
+	/**
+	 * Seed of a repetition. The first repetition uses the seed of the experiment, so it is comparable with a single sequential run. The seeds of all
+	 * others are derived from it with the finalizer of SplitMix64, so repetitions draw from unrelated sequences and every repetition can be
+	 * reproduced on its own.
+	 */
+	public static long getSeed(long seed, int repetition)
+	{
+		if(repetition == 0)
+			return seed;
+		long z = seed + (repetition + 1) * 0x9E3779B97F4A7C15L;
+		z = (z ^ (z >>> 30)) * 0xBF58476D1CE4E5B9L;
+		z = (z ^ (z >>> 27)) * 0x94D049BB133111EBL;
+		return z ^ (z >>> 31);
+	}
+
+	/**
+	 * Runs numIters repetitions of every setting on every test data set and returns the aggregated results of every setting and test data set. Every
+	 * setting and test data set uses the same seeds, as if it was run on its own.
+	 *
+	 * @param testIds
+	 *            Index of every test data set in the bank, which is excluded from the base GPs, or -1.
+	 * @return the results indexed by setting and test data set.
+	 */
+	public Result[][] run(final int[] testIds, final Instances[] testData, final int numIters, final long seed)
+	{
+		final int numSettings = this.numSettings(), numTestData = testIds.length;
+		final PredictionTable[] predictions = new PredictionTable[numTestData];
+		for(int d = 0; d < numTestData; d++)
+			predictions[d] = this.bank.predict(testData[d], testIds[d]);
+		final Result[][] results = new Result[numSettings][numTestData];
+		for(int setting = 0; setting < numSettings; setting++)
+			for(int d = 0; d < numTestData; d++)
+				results[setting][d] = new Result(this.maxTries);
+
+		int numJobs = numSettings * numTestData * numIters;
+		// The remaining threads predict and scan the candidates of the repetitions on one pool, which lives as long as the run.
+		final int threadsPerJob = Math.max(1, this.numThreads / Math.max(1, numJobs));
+		final ExecutorService scanPool = threadsPerJob > 1 ? Executors.newFixedThreadPool(this.numThreads) : null;
+		try
+		{
+			Parallel.forEach(numJobs, this.numThreads, new Parallel.Task()
+			{
+				@Override
+				public void run(int job)
+				{
+					int setting = job / (numTestData * numIters), d = job / numIters % numTestData, repetition = job % numIters;
+					Logger.info("Starting repetition " + (repetition + 1) + " of setting " + (setting + 1) + " on test data set " + (d + 1) + ".");
+					results[setting][d].add(repetition,
+							runOnce(setting, testIds[d], testData[d], predictions[d], getSeed(seed, repetition), new ExpectedImprovement(scanPool, threadsPerJob)));
+				}
+			});
+		}
+		finally
+		{
+			if(scanPool != null)
+				scanPool.shutdownNow();
+		}
+		return results;
+	}
+
+	/**
+	 * Row j of the results is the state after j + 1 evaluations. With a batch size q > 1, candidates are suggested and evaluated in rounds of q, so all
+	 * rows of a round show the state after the round. With asynchronous workers, row j is the state after the (j + 1)-th result arrived.
+	 *
+	 * @return the best accuracy, the best rank and the latency in milliseconds of every step. The latency is NaN for steps that were not run, i.e.
+	 *         after the best candidate was found or within a round. With asynchronous workers, the latency is the time since the previous result.
+	 */
+	private double[][] runOnce(int setting, int testId, Instances testData, PredictionTable predictions, long seed, ExpectedImprovement acquisitionFunction)
+	{
+		double[] acc = new double[this.maxTries];
+		double[] rank = new double[this.maxTries];
+		double[] latency = new double[this.maxTries];
+		Arrays.fill(latency, Double.NaN);
+
+		Instances candidates = testData;
+		if(this.numWorkers > 0)
+		{
+			// Told results are set as targets of the candidates, so concurrent repetitions must not share them.
+			candidates = DenseInstances.copyOf(testData);
+			predictions = predictions.forCandidates(candidates);
+		}
+		TwoStageSurrogate s = new TwoStageSurrogate(this.bank.getData(testId), candidates, this.bank.getSearchSpace(), this.bank.getModels(testId), predictions,
+				this.getBandwidth(setting), this.getSurrogate(setting).equals("tst-m"));
+		SMBO smbo = new SMBO(candidates, acquisitionFunction, s, new Random(seed));
+		if(this.numWorkers > 0)
+		{
+			AsyncSMBO async = new AsyncSMBO(smbo, this.fantasy);
+			async.run(new ReplayEvaluator(testData, this.bank.getSearchSpace(), this.duration, seed), this.maxTries, this.numWorkers);
+			double previous = 0;
+			for(int j = 0; j < async.numTold(); j++)
+			{
+				double[] trace = async.getTrace(j);
+				acc[j] = trace[0];
+				rank[j] = trace[1];
+				latency[j] = trace[2] - previous;
+				previous = trace[2];
+			}
+			// Fewer candidates than tries, the remaining steps keep the last state.
+			for(int j = Math.max(1, async.numTold()); j < this.maxTries; j++)
+			{
+				acc[j] = acc[j - 1];
+				rank[j] = rank[j - 1];
+			}
+			return new double[][] { acc, rank, latency };
+		}
+		for(int j = 0; j < this.maxTries; j++)
+		{
+			if(j > 0 && rank[j - 1] == 1)
+			{
+				acc[j] = acc[j - 1];
+				rank[j] = rank[j - 1];
+				continue;
+			}
+			long start = System.nanoTime();
+			boolean evaluated = true;
+			if(this.batchSize == 1)
+				smbo.iterate();
+			else if(j % this.batchSize == 0)
+				smbo.iterateBatch(Math.min(this.batchSize, this.maxTries - j), this.fantasy);
+			else
+				evaluated = false;
+			if(evaluated)
+				latency[j] = (double) (System.nanoTime() - start) / 1000000;
+			acc[j] = smbo.getBestAccuracy();
+			rank[j] = smbo.getBestRank();
+		}
+		return new double[][] { acc, rank, latency };
+	}
+
+	/**
+	 * Mean and standard deviation of the best accuracy, the best rank and the latency of every step over all repetitions of a test data set. The
+	 * repetitions are folded in in the order of their index, not in the order they finish, so the result is reproducible to the last bit.
+	 */
+	public static class Result
+	{
+		private RunningStatistics[] accuracy, rank, latency;
+
+		private int folded;
+
+		private HashMap<Integer, double[][]> finished = new HashMap<Integer, double[][]>();
+
+		private Result(int numSteps)
+		{
+			this.accuracy = new RunningStatistics[numSteps];
+			this.rank = new RunningStatistics[numSteps];
+			this.latency = new RunningStatistics[numSteps];
+			for(int j = 0; j < numSteps; j++)
+			{
+				this.accuracy[j] = new RunningStatistics();
+				this.rank[j] = new RunningStatistics();
+				this.latency[j] = new RunningStatistics();
+			}
+		}
+
+		private synchronized void add(int repetition, double[][] trace)
+		{
+			this.finished.put(repetition, trace);
+			for(double[][] next = this.finished.remove(this.folded); next != null; next = this.finished.remove(this.folded))
+			{
+				for(int j = 0; j < this.accuracy.length; j++)
+				{
+					this.accuracy[j].add(next[0][j]);
+					this.rank[j].add(next[1][j]);
+					if(!Double.isNaN(next[2][j]))
+						this.latency[j].add(next[2][j]);
+				}
+				this.folded++;
+			}
+		}
+
+		public int numSteps()
+		{
+			return this.accuracy.length;
+		}
+
+		public synchronized RunningStatistics getAccuracy(int step)
+		{
+			return this.accuracy[step];
+		}
+
+		public synchronized RunningStatistics getRank(int step)
+		{
+			return this.rank[step];
+		}
+
+		/**
+		 * Latency in milliseconds of the steps that were run.
+		 */
+		public synchronized RunningStatistics getLatency(int step)
+		{
+			return this.latency[step];
+		}
+	}
+}
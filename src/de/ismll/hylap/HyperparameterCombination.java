@@ -6,26 +6,6 @@ import de.ismll.core.Instance;
 
 public class HyperparameterCombination
 {
-	/**
-	 * MAX is excluding. This mean if you want to have indices 0, 1, 2 then MAX=3.
-	 */
-	public static int HYPERPARAMETER_INDEX_RANGE_MAX = 100;
-	
-	/**
-	 * MAX is excluding. This mean if you want to have indices 0, 1, 2 then MAX=3.
-	 */
-	public static int HYPERPARAMETER_INDICATOR_RANGE_MAX = 0;
-	
-	/**
-	 * MAX is excluding. This mean if you want to have indices 0, 1, 2 then MAX=3.
-	 */
-	public static int HYPERPARAMETER_ALGORITHM_RANGE = 0;
-	
-	/**
-	 * Index that contains the information about how long the training for this particular hyperparameter configuration took.
-	 */
-	public static int TIME_INDEX = -1;
-
 	public int[] keys;
 
 	public double[] values;
@@ -57,9 +37,10 @@ public class HyperparameterCombination
 		return sb.toString();
 	}
 
-	public static HyperparameterCombination getInstanceFromInstance(Instance instance)
+	public static HyperparameterCombination getInstanceFromInstance(Instance instance, SearchSpace space)
 	{
-		if(TIME_INDEX >= 0)
+		int numHyperparameters = space.numHyperparameters();
+		if(space.getTimeIndex() >= 0)
 		{
 			int[] keys = instance.getKeys();
 			int[] hpKeys = new int[keys.length-1];
@@ -69,9 +50,9 @@ public class HyperparameterCombination
 			int index = 0;
 			for(int i = 0; i < keys.length; i++)
 			{
-				if(keys[i] < HYPERPARAMETER_INDEX_RANGE_MAX)
+				if(keys[i] < numHyperparameters)
 				{
-					if(keys[i] == TIME_INDEX)
+					if(keys[i] == space.getTimeIndex())
 						trainingTime = values[i];
 					else
 					{
@@ -92,7 +73,7 @@ public class HyperparameterCombination
 			int length = 0;
 			for(int i = 0; i < keys.length; i++)
 			{
-				if(keys[i] < HYPERPARAMETER_INDEX_RANGE_MAX)
+				if(keys[i] < numHyperparameters)
 					length++;
 				else
 					break;
@@ -0,0 +1,353 @@
+package de.ismll.hylap;
+
+import java.util.Arrays;
+import java.util.HashMap;
+
+import de.ismll.core.Instance;
+import de.ismll.core.Instances;
+
+/**
+ * Grid of the hyperparameter configurations of a set of instances. Every hyperparameter, i.e. every value with an index below
+ * {@link SearchSpace#numHyperparameters()}, is a dimension whose coordinates are the ranks of its distinct values. Converting a value to its
+ * coordinate is a binary search over the L distinct values of the dimension, so a whole configuration costs O(d log L).
+ *
+ * If the grid has at most Long.MAX_VALUE points, a configuration is also identified by its lattice index, the mixed-radix number of its coordinates
+ * with the last dimension changing fastest, and every lattice index that occurs in the instances is mapped to the first row with this configuration.
+ * The lattice index of the rows is only built when it is first used. Grids with many indicators, e.g. the Weka search space, have more points, so
+ * only the coordinates and {@link #getRow(Instance)} are available for them.
+ */
+public class HyperparameterGrid
+{
+	/**
+	 * Lattices with at most this many points map lattice indices to rows with an array, larger ones with a hash map.
+	 */
+	private static final long MAX_TABLE_SIZE = 1 << 24;
+
+	private Instances instances;
+
+	/**
+	 * Distinct values of every dimension in ascending order.
+	 */
+	private double[][] levels;
+
+	/**
+	 * Strides of the lattice index or null if the grid has more than Long.MAX_VALUE points.
+	 */
+	private long[] strides;
+
+	private long size;
+
+	/**
+	 * Lattice index of every row, built on demand.
+	 */
+	private long[] indices;
+
+	private int[] rowTable;
+
+	private HashMap<Long, Integer> rowMap;
+
+	/**
+	 * First row of every configuration by its coordinates, built on demand if there is no lattice index.
+	 */
+	private HashMap<Coordinates, Integer> coordinateMap;
+
+	public HyperparameterGrid(Instances instances, SearchSpace space)
+	{
+		int d = space.numHyperparameters();
+		int n = instances.numInstances();
+		this.instances = instances;
+		this.levels = new double[d][];
+		for(int k = 0; k < d; k++)
+		{
+			double[] values = new double[n];
+			for(int i = 0; i < n; i++)
+				values[i] = instances.instance(i).getValue(k);
+			Arrays.sort(values);
+			int distinct = 0;
+			for(int i = 0; i < n; i++)
+			{
+				if(distinct == 0 || Double.compare(values[i], values[distinct - 1]) != 0)
+					values[distinct++] = values[i];
+			}
+			this.levels[k] = Arrays.copyOf(values, distinct);
+		}
+
+		long[] strides = new long[d];
+		long size = 1;
+		for(int k = d - 1; k >= 0 && strides != null; k--)
+		{
+			strides[k] = size;
+			if(this.levels[k].length > 0 && size > Long.MAX_VALUE / this.levels[k].length)
+				strides = null;
+			else
+				size *= Math.max(1, this.levels[k].length);
+		}
+		this.strides = strides;
+		this.size = strides == null ? -1 : size;
+	}
+
+	public int numDimensions()
+	{
+		return this.levels.length;
+	}
+
+	/**
+	 * Number of distinct values of the dimension.
+	 */
+	public int size(int dimension)
+	{
+		return this.levels[dimension].length;
+	}
+
+	/**
+	 * Whether the grid has at most Long.MAX_VALUE points and hence a lattice index.
+	 */
+	public boolean hasLatticeIndex()
+	{
+		return this.strides != null;
+	}
+
+	/**
+	 * Number of points of the full lattice, including those that do not occur in the instances.
+	 *
+	 * @throws IllegalStateException
+	 *             if the grid has no lattice index.
+	 */
+	public long size()
+	{
+		this.checkLatticeIndex();
+		return this.size;
+	}
+
+	public double getValue(int dimension, int coordinate)
+	{
+		return this.levels[dimension][coordinate];
+	}
+
+	/**
+	 * Returns the coordinate of the value in the dimension or -1 if the value does not occur.
+	 */
+	public int getCoordinate(int dimension, double value)
+	{
+		int coordinate = Arrays.binarySearch(this.levels[dimension], value);
+		return coordinate < 0 ? -1 : coordinate;
+	}
+
+	/**
+	 * Returns the coordinates of the configuration of the instance.
+	 *
+	 * @throws IllegalArgumentException
+	 *             if a hyperparameter value of the instance is not part of the grid.
+	 */
+	public int[] getCoordinates(Instance instance)
+	{
+		int[] coordinates = new int[this.levels.length];
+		for(int k = 0; k < this.levels.length; k++)
+		{
+			coordinates[k] = this.getCoordinate(k, instance.getValue(k));
+			if(coordinates[k] < 0)
+				throw new IllegalArgumentException("Value " + instance.getValue(k) + " of hyperparameter " + k + " is not part of the grid.");
+		}
+		return coordinates;
+	}
+
+	/**
+	 * Returns the first row with the configuration of the instance or -1 if it does not occur. This works with and without lattice index.
+	 */
+	public int getRow(Instance instance)
+	{
+		int[] coordinates = new int[this.levels.length];
+		for(int k = 0; k < this.levels.length; k++)
+		{
+			coordinates[k] = this.getCoordinate(k, instance.getValue(k));
+			if(coordinates[k] < 0)
+				return -1;
+		}
+		if(this.hasLatticeIndex())
+			return this.getRow(this.getIndex(coordinates));
+		Integer row = this.coordinateMap().get(new Coordinates(coordinates));
+		return row == null ? -1 : row;
+	}
+
+	/**
+	 * Returns the lattice index of the configuration of the instance.
+	 *
+	 * @throws IllegalArgumentException
+	 *             if a hyperparameter value of the instance is not part of the grid.
+	 * @throws IllegalStateException
+	 *             if the grid has no lattice index.
+	 */
+	public long getIndex(Instance instance)
+	{
+		this.checkLatticeIndex();
+		return this.getIndex(this.getCoordinates(instance));
+	}
+
+	public long getIndex(int[] coordinates)
+	{
+		this.checkLatticeIndex();
+		long index = 0;
+		for(int k = 0; k < this.levels.length; k++)
+			index += coordinates[k] * this.strides[k];
+		return index;
+	}
+
+	/**
+	 * Lattice index of the row.
+	 */
+	public long getIndexOfRow(int row)
+	{
+		return this.indices()[row];
+	}
+
+	public int[] getCoordinates(long index)
+	{
+		this.checkLatticeIndex();
+		int[] coordinates = new int[this.levels.length];
+		for(int k = 0; k < this.levels.length; k++)
+		{
+			coordinates[k] = (int) (index / this.strides[k]);
+			index %= this.strides[k];
+		}
+		return coordinates;
+	}
+
+	public int getCoordinate(long index, int dimension)
+	{
+		this.checkLatticeIndex();
+		return (int) (index / this.strides[dimension] % Math.max(1, this.levels[dimension].length));
+	}
+
+	/**
+	 * Returns the first row with the configuration of the lattice index or -1 if it does not occur.
+	 */
+	public int getRow(long index)
+	{
+		this.indices();
+		if(index < 0 || index >= this.size)
+			return -1;
+		if(this.rowTable != null)
+			return this.rowTable[(int) index];
+		Integer row = this.rowMap.get(index);
+		return row == null ? -1 : row;
+	}
+
+	/**
+	 * Returns the row of the configuration that differs from the one of the row by delta steps in the dimension, or -1 if there is none.
+	 */
+	public int getNeighbour(int row, int dimension, int delta)
+	{
+		long[] indices = this.indices();
+		int coordinate = this.getCoordinate(indices[row], dimension) + delta;
+		if(coordinate < 0 || coordinate >= this.levels[dimension].length)
+			return -1;
+		return this.getRow(indices[row] + delta * this.strides[dimension]);
+	}
+
+	/**
+	 * Returns the rows whose coordinate c in every dimension k satisfies from[k] <= c < to[k] and (c - from[k]) % step[k] == 0, in ascending order.
+	 * This selects slices, strided subgrids and every k-th point.
+	 */
+	public int[] select(int[] from, int[] to, int[] step)
+	{
+		long[] indices = this.indices();
+		int[] rows = new int[indices.length];
+		int count = 0;
+		for(int i = 0; i < indices.length; i++)
+		{
+			if(this.isSelected(indices[i], from, to, step))
+				rows[count++] = i;
+		}
+		return Arrays.copyOf(rows, count);
+	}
+
+	/**
+	 * Whether the lattice index satisfies the selection of {@link #select(int[], int[], int[])}.
+	 */
+	public boolean isSelected(long index, int[] from, int[] to, int[] step)
+	{
+		for(int k = 0; k < this.levels.length; k++)
+		{
+			int coordinate = this.getCoordinate(index, k);
+			if(coordinate < from[k] || coordinate >= to[k] || (coordinate - from[k]) % step[k] != 0)
+				return false;
+		}
+		return true;
+	}
+
+	private void checkLatticeIndex()
+	{
+		if(this.strides == null)
+			throw new IllegalStateException("The hyperparameter grid has more than " + Long.MAX_VALUE + " points and no lattice index.");
+	}
+
+	/**
+	 * Builds the lattice index of the rows on first use.
+	 */
+	private synchronized long[] indices()
+	{
+		this.checkLatticeIndex();
+		if(this.indices == null)
+		{
+			int n = this.instances.numInstances();
+			long[] indices = new long[n];
+			if(this.size <= MAX_TABLE_SIZE)
+			{
+				this.rowTable = new int[(int) this.size];
+				Arrays.fill(this.rowTable, -1);
+			}
+			else
+				this.rowMap = new HashMap<Long, Integer>();
+			for(int i = n - 1; i >= 0; i--)
+			{
+				indices[i] = this.getIndex(this.instances.instance(i));
+				if(this.rowTable != null)
+					this.rowTable[(int) indices[i]] = i;
+				else
+					this.rowMap.put(indices[i], i);
+			}
+			this.indices = indices;
+		}
+		return this.indices;
+	}
+
+	/**
+	 * Builds the map from coordinates to rows on first use.
+	 */
+	private synchronized HashMap<Coordinates, Integer> coordinateMap()
+	{
+		if(this.coordinateMap == null)
+		{
+			HashMap<Coordinates, Integer> map = new HashMap<Coordinates, Integer>();
+			for(int i = this.instances.numInstances() - 1; i >= 0; i--)
+				map.put(new Coordinates(this.getCoordinates(this.instances.instance(i))), i);
+			this.coordinateMap = map;
+		}
+		return this.coordinateMap;
+	}
+
+	private static class Coordinates
+	{
+		private int[] coordinates;
+
+		private int hashCode;
+
+		private Coordinates(int[] coordinates)
+		{
+			this.coordinates = coordinates;
+			this.hashCode = Arrays.hashCode(coordinates);
+		}
+
+		@Override
+		public int hashCode()
+		{
+			return this.hashCode;
+		}
+
+		@Override
+		public boolean equals(Object object)
+		{
+			return object instanceof Coordinates && Arrays.equals(this.coordinates, ((Coordinates) object).coordinates);
+		}
+	}
+}
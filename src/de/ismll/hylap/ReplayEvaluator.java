@@ -0,0 +1,82 @@
+package de.ismll.hylap;
+
+import java.io.File;
+import java.io.IOException;
+
+import de.ismll.core.DenseInstances;
+import de.ismll.core.Instance;
+import de.ismll.core.Instances;
+
+/**
+ * Stand-in for real evaluations that replays the targets of a meta-data set. The configuration is looked up by its hyperparameters in a
+ * {@link HyperparameterGrid}, and every evaluation takes a simulated duration drawn from an exponential distribution. The duration of a
+ * configuration only depends on its row and the seed, so replays are reproducible apart from the order in which concurrent evaluations finish.
+ */
+public class ReplayEvaluator implements Evaluator
+{
+	private Instances instances;
+
+	private HyperparameterGrid grid;
+
+	private double meanDuration;
+
+	private long seed;
+
+	/**
+	 * @param meanDuration
+	 *            Mean simulated duration of an evaluation in milliseconds, 0 to return immediately.
+	 */
+	public ReplayEvaluator(Instances instances, SearchSpace space, double meanDuration, long seed)
+	{
+		if(meanDuration < 0)
+			throw new IllegalArgumentException("The mean duration must not be negative.");
+		this.instances = instances;
+		this.grid = new HyperparameterGrid(instances, space);
+		this.meanDuration = meanDuration;
+		this.seed = seed;
+	}
+
+	public ReplayEvaluator(File file, SearchSpace space, double meanDuration, long seed) throws IOException
+	{
+		this(DenseInstances.read(file), space, meanDuration, seed);
+	}
+
+	/**
+	 * @throws IllegalArgumentException
+	 *             if the configuration is not part of the meta-data set.
+	 * @throws IllegalStateException
+	 *             if the thread was interrupted while waiting.
+	 */
+	@Override
+	public double evaluate(Instance configuration)
+	{
+		int row = this.grid.getRow(configuration);
+		if(row < 0)
+			throw new IllegalArgumentException("The configuration is not part of the meta-data set.");
+		long duration = this.getDuration(row);
+		if(duration > 0)
+		{
+			try
+			{
+				Thread.sleep(duration);
+			}
+			catch(InterruptedException e)
+			{
+				Thread.currentThread().interrupt();
+				throw new IllegalStateException("Interrupted while evaluating.", e);
+			}
+		}
+		return this.instances.instance(row).target();
+	}
+
+	/**
+	 * Simulated duration of the evaluation of the row in milliseconds.
+	 */
+	public long getDuration(int row)
+	{
+		if(this.meanDuration == 0)
+			return 0;
+		java.util.Random random = new java.util.Random(this.seed * 31 + row);
+		return Math.round(-this.meanDuration * Math.log(1 - random.nextDouble()));
+	}
+}
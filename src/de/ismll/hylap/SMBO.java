@@ -1,6 +1,9 @@
 package de.ismll.hylap;
 
 import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Random;
 
 import de.ismll.core.Instance;
 import de.ismll.core.InstanceUtils;
@@ -10,6 +13,26 @@ import de.ismll.hylap.surrogateModel.SurrogateModel;
 
 public class SMBO
 {
+	/**
+	 * Fantasizes the predicted mean of a suggested candidate.
+	 */
+	public static final int KRIGING_BELIEVER = 0;
+
+	/**
+	 * Fantasizes the worst observed target for every suggested candidate.
+	 */
+	public static final int CONSTANT_LIAR_MIN = 1;
+
+	/**
+	 * Fantasizes the mean observed target for every suggested candidate.
+	 */
+	public static final int CONSTANT_LIAR_MEAN = 2;
+
+	/**
+	 * Fantasizes the best observed target for every suggested candidate.
+	 */
+	public static final int CONSTANT_LIAR_MAX = 3;
+
 	private Instances instances;
 
 	private Instances h;
@@ -20,13 +43,39 @@ public class SMBO
 
 	private ArrayList<Instance> candidates;
 
+	/**
+	 * Candidates that were suggested but not observed yet, in the order they were suggested.
+	 */
+	private ArrayList<Instance> pending = new ArrayList<Instance>();
+
+	/**
+	 * History followed by the fantasies of the pending candidates told to the surrogate model so far, or null if none were told since the last
+	 * observation.
+	 */
+	private Instances fantasies;
+
 	private Instance bestInstance;
 
 	private double time;
 
+	/**
+	 * Random number generator of the session, used to break ties of the acquisition function.
+	 */
+	private Random random;
+
 	public SMBO(Instances instances, AcquisitionFunction acquisitionFunction, SurrogateModel surrogateModel)
+	{
+		this(instances, acquisitionFunction, surrogateModel, new Random(0));
+	}
+
+	/**
+	 * @param random
+	 *            Random number generator of this session. Sessions with their own generators do not affect each other's results.
+	 */
+	public SMBO(Instances instances, AcquisitionFunction acquisitionFunction, SurrogateModel surrogateModel, Random random)
 	{
 		this.instances = instances;
+		this.random = random;
 		this.acquisitionFunction = acquisitionFunction;
 		this.surrogateModel = surrogateModel;
 		this.h = new Instances(instances.numValues());
@@ -35,16 +84,127 @@ public class SMBO
 			this.candidates.add(this.instances.instance(i));
 	}
 
+	/**
+	 * Suggests the candidate with the best acquisition value and observes it immediately.
+	 */
 	public void iterate()
 	{
-		Instance x = this.acquisitionFunction.getNext(this.h, this.surrogateModel, this.candidates);
+		this.iterateBatch(1, KRIGING_BELIEVER);
+	}
+
+	/**
+	 * Suggests a candidate to be evaluated while other suggested candidates are still pending, i.e. suggested but not observed yet. The surrogate
+	 * model is told a fantasized target for every pending candidate, see {@link SurrogateModel#fantasize(Instance, double)}, so the acquisition
+	 * function avoids their neighbourhood. Fantasies are kept until the next observation, so every pending candidate is fantasized only once between
+	 * two observations. The suggested candidate is pending until it is observed and not suggested again.
+	 * 
+	 * @param strategy
+	 *            {@link #KRIGING_BELIEVER}, {@link #CONSTANT_LIAR_MIN}, {@link #CONSTANT_LIAR_MEAN} or {@link #CONSTANT_LIAR_MAX}. The constant liars
+	 *            use the Kriging believer as long as there are no observations.
+	 * @return the candidate or null if all candidates were suggested.
+	 */
+	public Instance ask(int strategy)
+	{
+		if(strategy < KRIGING_BELIEVER || strategy > CONSTANT_LIAR_MAX)
+			throw new IllegalArgumentException("Unknown fantasy strategy " + strategy + ".");
+		if(this.candidates.isEmpty())
+			return null;
+		if(this.fantasies == null)
+		{
+			this.fantasies = new Instances(this.instances.numValues());
+			this.fantasies.addAll(this.h);
+		}
+		double lie = this.getLie(strategy);
+		for(int i = this.fantasies.numInstances() - this.h.numInstances(); i < this.pending.size(); i++)
+		{
+			Instance x = this.pending.get(i);
+			double target = Double.isNaN(lie) ? this.surrogateModel.predict(x)[0] : lie;
+			this.fantasies.add(InstanceUtils.project(x, this.instances.numValues(), target));
+			this.surrogateModel.fantasize(x, target);
+		}
+		Instance x = this.acquisitionFunction.getNext(this.fantasies, this.surrogateModel, this.candidates, this.random);
 		this.candidates.remove(x);
-		if(this.bestInstance == null || this.bestInstance.target() < x.target())
-			this.bestInstance = x;
-		this.h.add(x);
+		this.pending.add(x);
+		return x;
+	}
+
+	/**
+	 * Observes the target of a pending candidate, e.g. the result of a real evaluation. The target is set on the candidate.
+	 * 
+	 * @throws IllegalArgumentException
+	 *             if the candidate is not pending.
+	 */
+	public void tell(Instance x, double target)
+	{
+		if(!this.pending.contains(x))
+			throw new IllegalArgumentException("The instance was not suggested or was already observed.");
+		x.setTarget(target);
+		this.observe(Collections.singletonList(x));
+	}
+
+	/**
+	 * Returns the fantasized target of the strategy if it does not depend on the candidate, otherwise NaN.
+	 */
+	private double getLie(int strategy)
+	{
+		if(strategy == KRIGING_BELIEVER || this.h.numInstances() == 0)
+			return Double.NaN;
+		if(strategy == CONSTANT_LIAR_MIN)
+			return this.h.getMinTarget();
+		if(strategy == CONSTANT_LIAR_MAX)
+			return this.h.getMaxTarget();
+		double lie = 0;
+		for(int i = 0; i < this.h.numInstances(); i++)
+			lie += this.h.instance(i).target();
+		return lie / this.h.numInstances();
+	}
+
+	/**
+	 * Suggests up to q candidates to be evaluated concurrently, see {@link #ask(int)}.
+	 */
+	public ArrayList<Instance> suggest(int q, int strategy)
+	{
+		ArrayList<Instance> batch = new ArrayList<Instance>(q);
+		while(batch.size() < q && !this.candidates.isEmpty())
+			batch.add(this.ask(strategy));
+		return batch;
+	}
+
+	/**
+	 * Adds the evaluated instances to the history and trains the surrogate model once. The instances do not have to be pending, so candidates can
+	 * also be evaluated without being suggested.
+	 */
+	public void observe(List<Instance> evaluated)
+	{
+		for(Instance x : evaluated)
+		{
+			if(!this.pending.remove(x))
+				this.candidates.remove(x);
+			if(this.bestInstance == null || this.bestInstance.target() < x.target())
+				this.bestInstance = x;
+			this.h.add(x);
+		}
+		this.fantasies = null;
+		this.surrogateModel.clearFantasies();
 		this.surrogateModel.train(this.h);
 	}
 
+	/**
+	 * Suggests q candidates and observes them, i.e. one round of evaluating q candidates concurrently.
+	 */
+	public void iterateBatch(int q, int strategy)
+	{
+		this.observe(this.suggest(q, strategy));
+	}
+
+	/**
+	 * Candidates that were suggested but not observed yet.
+	 */
+	public List<Instance> getPending()
+	{
+		return Collections.unmodifiableList(this.pending);
+	}
+
 	public double getBestAccuracy()
 	{
 		return this.bestInstance.target();
@@ -2,22 +2,15 @@ package de.ismll.hylap;
 
 import java.io.File;
 import java.io.IOException;
-import java.util.ArrayList;
-import java.util.Collections;
 import java.util.HashMap;
 
-import org.apache.commons.math3.stat.descriptive.moment.Mean;
-import org.apache.commons.math3.stat.descriptive.moment.StandardDeviation;
-
-import de.ismll.core.Instance;
+import de.ismll.core.DenseInstances;
 import de.ismll.core.Instances;
 import de.ismll.core.Logger;
-import de.ismll.core.Random;
-import de.ismll.core.regression.GaussianProcessRegression;
-import de.ismll.hylap.acquisitionFunction.AcquisitionFunction;
-import de.ismll.hylap.acquisitionFunction.ExpectedImprovement;
-import de.ismll.hylap.surrogateModel.SurrogateModel;
-import de.ismll.hylap.surrogateModel.TwoStageSurrogate;
+import de.ismll.core.Parallel;
+import de.ismll.core.RunningStatistics;
+import de.ismll.hylap.surrogateModel.BaseModelBank;
+import de.ismll.hylap.surrogateModel.ModelStore;
 
 public class SMBOMain
 {
@@ -26,16 +19,23 @@ public class SMBOMain
 		System.out
 				.println("============= Mandatory Parameters =============\n"
 						+ "-f\t\tPath to the folder where your datasets are stored.\n"
-						+ "-dataset\tName of the dataset to evaluate.\n"
+						+ "-dataset\tName of the dataset to evaluate. Several datasets can be separated by commas, \"all\" evaluates every dataset in the folder.\n"
 						+ "-tries\t\tNumber of steps for the SMBO algorithm.\n"
-						+ "-s\t\tThe surrogate model. \"tst-m\" (TST with meta-features), \"tst-r\" (TST with pairwise comparisons)\n"
-						+ "-bandwidth\tBandwidth (TST-M: SVM: 3.25; TST-R: SVM: 0.1, Weka: 0.9)\n"
+						+ "-s\t\tThe surrogate model. \"tst-m\" (TST with meta-features), \"tst-r\" (TST with pairwise comparisons). Several can be separated by commas.\n"
+						+ "-bandwidth\tBandwidth (TST-M: SVM: 3.25; TST-R: SVM: 0.1, Weka: 0.9). Several can be separated by commas, every combination of surrogate and bandwidth is evaluated in parallel.\n"
 						+ "-hpRange\tNumber of hyperparameters (SVM: 6, Weka: 103)\n"
 						+ "-hpIndicatorRange\tNumber of hyperparameters that are indicators (SVM: 3, Weka: 64)\n"
 						+ "\n============= Optional Parameters =============\n"
 						+ "-seed\t\tRandom seed (Default: 0, Random: r)\n"
-						+ "-iter\t\tNumber of iterations, results are averaged.\n"
-						+ "-sparseGrid\tWhether to use only a subgrid of the data for training (default: true)"
+						+ "-iter\t\tNumber of repetitions with independent seeds, results are averaged. Repetitions and datasets run concurrently.\n"
+						+ "-sparseGrid\tWhether to use only a subgrid of the data for training (default: true)\n"
+						+ "-threads\tNumber of threads used for training the surrogates, running the repetitions and scanning the candidates (default: number of processors)\n"
+						+ "-modelStore\tFolder where trained surrogates are stored and loaded from (default: none)\n"
+						+ "-sharedKernel\tWhether the surrogates of all training data sets share one kernel (default: false)\n"
+						+ "-batch\t\tNumber of candidates suggested per round and evaluated concurrently (default: 1)\n"
+						+ "-fantasy\tTarget fantasized for pending candidates in a batch. \"kb\" (Kriging believer), \"cl-min\", \"cl-mean\", \"cl-max\" (constant liar) (default: kb)\n"
+						+ "-async\t\tNumber of workers evaluating asynchronously, results are replayed from the dataset (default: 0, rounds of -batch candidates)\n"
+						+ "-duration\tMean simulated duration of an asynchronous evaluation in ms (default: 0)"
 						);
 		System.exit(0);
 	}
@@ -60,160 +60,207 @@ public class SMBOMain
 			numIters = Integer.parseInt(argsMap.get("-iter"));
 		}
 
-		if(!new File(dataFolder + "/" + datasetName).exists())
+		String[] datasetNames = datasetName.split(",");
+		if(datasetName.equals("all"))
 		{
-			Logger.severe("Data set " + datasetName + " does not exist in folder " + new File(dataFolder).getAbsolutePath() + ".");
-			System.exit(1);
+			datasetNames = new String[files.length];
+			for(int i = 0; i < files.length; i++)
+				datasetNames[i] = files[i].getName();
+		}
+		for(String name : datasetNames)
+		{
+			if(!new File(dataFolder + "/" + name).exists())
+			{
+				Logger.severe("Data set " + name + " does not exist in folder " + new File(dataFolder).getAbsolutePath() + ".");
+				System.exit(1);
+			}
 		}
 		// Set seed
+		long seed = 0;
 		if(argsMap.containsKey("-seed"))
 		{
 			if(argsMap.get("-seed").equals("r"))
-				Random.setSeed(System.currentTimeMillis());
+				seed = System.currentTimeMillis();
 			else
-				Random.setSeed(Long.parseLong(argsMap.get("-seed")));
+				seed = Long.parseLong(argsMap.get("-seed"));
 		}
-		else
-			Random.setSeed(0);
 
-		if(argsMap.containsKey("-hpRange"))
-			HyperparameterCombination.HYPERPARAMETER_INDEX_RANGE_MAX = Integer.parseInt(argsMap.get("-hpRange"));
-		if(argsMap.containsKey("-hpIndicatorRange"))
-			HyperparameterCombination.HYPERPARAMETER_INDICATOR_RANGE_MAX = Integer.parseInt(argsMap.get("-hpIndicatorRange"));
+		SearchSpace space = new SearchSpace(Integer.parseInt(argsMap.get("-hpRange")), Integer.parseInt(argsMap.get("-hpIndicatorRange")));
 
-		double bandwidth = Double.parseDouble(argsMap.get("-bandwidth"));
+		String[] bandwidths = argsMap.get("-bandwidth").split(",");
 		boolean sparseGrid = true;
 		if(argsMap.containsKey("-sparseGrid"))
 			sparseGrid = Boolean.parseBoolean(argsMap.get("-sparseGrid"));
 
-		Logger.info("Loading data sets from " + new File(dataFolder).getAbsolutePath() + ".");
-		Instances[] train = new Instances[files.length - 1];
-		int testId = -1;
-
-		for(int i = 0; i < files.length; i++)
+		int batchSize = 1;
+		if(argsMap.containsKey("-batch"))
+			batchSize = Integer.parseInt(argsMap.get("-batch"));
+		if(batchSize < 1)
 		{
-			if(files[i].getName().equals(datasetName))
-				testId = i;
+			Logger.severe("Batch size must be positive.");
+			System.exit(1);
 		}
 
-		int l = 0;
-		for(int j = 0; j < files.length; j++)
+		int fantasy = SMBO.KRIGING_BELIEVER;
+		if(argsMap.containsKey("-fantasy"))
 		{
-			if(j != testId)
+			String strategy = argsMap.get("-fantasy");
+			if(strategy.equals("kb"))
+				fantasy = SMBO.KRIGING_BELIEVER;
+			else if(strategy.equals("cl-min"))
+				fantasy = SMBO.CONSTANT_LIAR_MIN;
+			else if(strategy.equals("cl-mean"))
+				fantasy = SMBO.CONSTANT_LIAR_MEAN;
+			else if(strategy.equals("cl-max"))
+				fantasy = SMBO.CONSTANT_LIAR_MAX;
+			else
 			{
-				train[l++] = new Instances(files[j]);
+				Logger.severe("Unknown fantasy strategy \"" + strategy + "\"");
+				System.exit(1);
 			}
 		}
 
-		if(sparseGrid)
+		int numWorkers = 0;
+		if(argsMap.containsKey("-async"))
+			numWorkers = Integer.parseInt(argsMap.get("-async"));
+		double duration = 0;
+		if(argsMap.containsKey("-duration"))
+			duration = Double.parseDouble(argsMap.get("-duration"));
+
+		int numThreads = Runtime.getRuntime().availableProcessors();
+		if(argsMap.containsKey("-threads"))
+			numThreads = Integer.parseInt(argsMap.get("-threads"));
+
+		Logger.info("Loading data sets from " + new File(dataFolder).getAbsolutePath() + ".");
+		DenseInstances[] train = readDataSets(files, space, sparseGrid, numThreads);
+
+		// Every GP only depends on its own data set, so one bank serves all test data sets.
+		BaseModelBank bank = new BaseModelBank(train, space, numThreads);
+		if(argsMap.containsKey("-modelStore"))
 		{
-			// Remove instances from the grid
-			HashMap<Double, Integer>[] hpIndex = new HashMap[HyperparameterCombination.HYPERPARAMETER_INDEX_RANGE_MAX - HyperparameterCombination.HYPERPARAMETER_INDICATOR_RANGE_MAX];
-			for(int i = 0; i < hpIndex.length; i++)
+			String[] names = new String[files.length];
+			for(int i = 0; i < files.length; i++)
+				names[i] = files[i].getName();
+			bank.setModelStore(new ModelStore(new File(argsMap.get("-modelStore"))), names);
+		}
+		if(argsMap.containsKey("-sharedKernel"))
+			bank.setSharedKernel(Boolean.parseBoolean(argsMap.get("-sharedKernel")));
+		// Every combination of surrogate and bandwidth is a setting of the sweep.
+		ExperimentRunner runner = new ExperimentRunner(bank, maxTries, numThreads);
+		for(String surrogate : argsMap.get("-s").split(","))
+		{
+			for(String bandwidth : bandwidths)
 			{
-				hpIndex[i] = new HashMap<Double, Integer>();
-				ArrayList<Double> hyperparameterValues = new ArrayList<Double>();
-				for(int j = 0; j < train[0].numInstances(); j++)
+				try
 				{
-					if(!hyperparameterValues.contains(train[0].instance(j).getValue(HyperparameterCombination.HYPERPARAMETER_INDICATOR_RANGE_MAX + i)))
-						hyperparameterValues.add(train[0].instance(j).getValue(HyperparameterCombination.HYPERPARAMETER_INDICATOR_RANGE_MAX + i));
+					runner.addSetting(surrogate, Double.parseDouble(bandwidth));
 				}
-				Collections.sort(hyperparameterValues);
-				for(int j = 0; j < hyperparameterValues.size(); j++)
+				catch(IllegalArgumentException e)
 				{
-					hpIndex[i].put(hyperparameterValues.get(j), j);
+					Logger.severe(e.getMessage());
+					System.exit(1);
 				}
 			}
-			for(int i = 0; i < train.length; i++)
+		}
+		int[] testIds = new int[datasetNames.length];
+		Instances[] testData = new Instances[datasetNames.length];
+		for(int d = 0; d < datasetNames.length; d++)
+		{
+			for(int i = 0; i < files.length; i++)
 			{
-				ArrayList<Instance> instancesToBeRemoved = new ArrayList<Instance>();
-				for(int j = 0; j < train[i].numInstances(); j++)
-				{
-					Instance instance = train[i].instance(j);
-					for(int h = 0; h < hpIndex.length; h++)
-					{
-						double instanceValue = instance.getValue(HyperparameterCombination.HYPERPARAMETER_INDICATOR_RANGE_MAX + h);
-						if((hpIndex[h].get(instanceValue) + 2) % 3 != 0)
-						{
-							if(HyperparameterCombination.HYPERPARAMETER_INDICATOR_RANGE_MAX == 0 || HyperparameterCombination.HYPERPARAMETER_INDICATOR_RANGE_MAX != 0 && instanceValue != 0)
-							{
-								instancesToBeRemoved.add(instance);
-								break;
-							}
-						}
-					}
-				}
-				for(Instance inst : instancesToBeRemoved)
-					train[i].remove(inst);
+				if(files[i].getName().equals(datasetNames[d]))
+					testIds[d] = i;
 			}
+			testData[d] = DenseInstances.read(files[testIds[d]]);
 		}
 
-		Instances testData = new Instances(files[testId]);
-
 		Logger.info("Starting the SMBO framework.");
-		double[][] acc = new double[maxTries][numIters];
-		double[][] rank = new double[maxTries][numIters];
-		double[] time = new double[maxTries];
-		int[] count = new int[maxTries];
-		GaussianProcessRegression[] tstSurrogates = null;
-		HashMap<Instance,Double>[] tstCachedPredictions = null;
-		for(int iter = 0; iter < numIters; iter++)
-		{
-			Logger.info("Starting iteration " + (iter + 1) + ".");
-			AcquisitionFunction a = new ExpectedImprovement();
+		runner.setBatch(batchSize, fantasy);
+		runner.setAsync(numWorkers, duration);
+		ExperimentRunner.Result[][] results = runner.run(testIds, testData, numIters, seed);
 
-			SurrogateModel s = null;
-			if(argsMap.get("-s").equals("tst-m") || argsMap.get("-s").equals("tst-r"))
+		Logger.info("Printing results to console.");
+		for(int setting = 0; setting < runner.numSettings(); setting++)
+		{
+			if(runner.numSettings() > 1)
+				System.out.println("Setting: " + runner.getSurrogate(setting) + ", bandwidth " + runner.getBandwidth(setting));
+			for(int d = 0; d < datasetNames.length; d++)
 			{
-				if(bandwidth <= 0)
+				if(datasetNames.length > 1)
+					System.out.println("Dataset: " + datasetNames[d]);
+				System.out.println("Accuracy(mean),Accuracy(sd),Rank(mean),Rank(sd),Time in ms");
+				for(int j = 0; j < maxTries; j++)
 				{
-					Logger.severe("Bandwidth not set or not positive.");
-					System.exit(1);
+					RunningStatistics acc = results[setting][d].getAccuracy(j), rank = results[setting][d].getRank(j);
+					System.out.println(acc.getMean() + "," + acc.getStandardDeviation() + "," + rank.getMean() + "," + rank.getStandardDeviation() + ","
+							+ results[setting][d].getLatency(j).getMean());
 				}
-				if(tstSurrogates == null)
-				{
-					TwoStageSurrogate kr = new TwoStageSurrogate(train, testData, bandwidth, argsMap.get("-s").equals("tst-m"));
-					tstSurrogates = kr.getSurrogates();
-					tstCachedPredictions = kr.getCachedPredictions();
-					s = kr;
-				}
-				else
-					s = new TwoStageSurrogate(train, testData, tstSurrogates, tstCachedPredictions, bandwidth, argsMap.get("-s").equals("tst-m"));
-			}
-			else
-			{
-				Logger.severe("Unknown surrogate function \"" + argsMap.get("-s") + "\"");
-				System.exit(1);
 			}
+		}
+	}
 
-			long start = System.nanoTime();
-			SMBO smbo = new SMBO(testData, a, s);
-			for(int j = 0; j < maxTries; j++)
+	/**
+	 * Reads the data sets in parallel and keeps only the sparse grid of every data set if requested, see {@link #filterSparseGrid(DenseInstances, HyperparameterGrid, SearchSpace)}.
+	 */
+	static DenseInstances[] readDataSets(final File[] files, final SearchSpace space, boolean sparseGrid, int numThreads)
+	{
+		final DenseInstances[] train = new DenseInstances[files.length];
+		Parallel.forEach(files.length, numThreads, new Parallel.Task()
+		{
+			@Override
+			public void run(int j)
 			{
-				if(j > 0 && rank[j - 1][iter] == 1)
+				try
 				{
-					acc[j][iter] = acc[j - 1][iter];
-					rank[j][iter] = rank[j - 1][iter];
+					train[j] = DenseInstances.read(files[j]);
 				}
-				else
+				catch(IOException e)
 				{
-					smbo.iterate();
-					acc[j][iter] = smbo.getBestAccuracy();
-					rank[j][iter] = smbo.getBestRank();
-					time[j] += (double) (System.nanoTime() - start) / 1000000;
-					count[j]++;
+					throw new IllegalStateException("Data set " + files[j].getAbsolutePath() + " cannot be read.", e);
 				}
 			}
-		}
+		});
 
-		StandardDeviation sd = new StandardDeviation();
-		Mean mean = new Mean();
+		if(sparseGrid)
+		{
+			// Remove instances from the grid
+			final HyperparameterGrid grid = new HyperparameterGrid(train[0], space);
+			Parallel.forEach(train.length, numThreads, new Parallel.Task()
+			{
+				@Override
+				public void run(int i)
+				{
+					train[i] = filterSparseGrid(train[i], grid, space);
+				}
+			});
+		}
+		return train;
+	}
 
-		Logger.info("Printing results to console.");
-		System.out.println("Accuracy(mean),Accuracy(sd),Rank(mean),Rank(sd),Time in ms");
-		for(int j = 0; j < maxTries; j++)
+	/**
+	 * Keeps only every third coordinate of each non-indicator hyperparameter in the grid, starting with the second. Values of 0 are always kept if there are
+	 * indicators, since they stand for hyperparameters that are not used. The kept rows are copied in a single pass.
+	 */
+	private static DenseInstances filterSparseGrid(DenseInstances instances, HyperparameterGrid grid, SearchSpace space)
+	{
+		int numValues = instances.numValues();
+		double[] data = instances.getData();
+		DenseInstances kept = new DenseInstances(numValues, instances.numInstances());
+		for(int j = 0; j < instances.numInstances(); j++)
 		{
-			System.out.println(mean.evaluate(acc[j]) + "," + sd.evaluate(acc[j]) + "," + mean.evaluate(rank[j]) + "," + sd.evaluate(rank[j]) + "," + (time[j] / count[j]));
+			int offset = j * numValues;
+			boolean keep = true;
+			for(int h = space.numIndicators(); h < space.numHyperparameters() && keep; h++)
+			{
+				double value = data[offset + h];
+				int coordinate = grid.getCoordinate(h, value);
+				if(coordinate < 0)
+					throw new IllegalArgumentException("Value " + value + " of hyperparameter " + h + " is not part of the grid of the first data set.");
+				keep = (coordinate + 2) % 3 == 0 || space.numIndicators() != 0 && value == 0;
+			}
+			if(keep)
+				kept.add(instances.instance(j).target(), data, offset);
 		}
+		return kept;
 	}
 }
@@ -0,0 +1,70 @@
+package de.ismll.hylap;
+
+/**
+ * Schema of the hyperparameter search space of a meta-data set. The values of an instance start with the hyperparameters, the first of which are
+ * indicators, followed by the meta-features. A search space cannot be changed, so one schema can be shared by any number of concurrent sessions and
+ * sessions on meta-data sets with different schemas can run in the same JVM.
+ */
+public class SearchSpace
+{
+	/**
+	 * Number of hyperparameters, i.e. values with an index below are hyperparameters.
+	 */
+	private final int numHyperparameters;
+
+	/**
+	 * Number of hyperparameters that are indicators, i.e. values with an index below are indicators.
+	 */
+	private final int numIndicators;
+
+	/**
+	 * Index that contains the information about how long the training for this particular hyperparameter configuration took, or -1 if there is none.
+	 */
+	private final int timeIndex;
+
+	public SearchSpace(int numHyperparameters, int numIndicators)
+	{
+		this(numHyperparameters, numIndicators, -1);
+	}
+
+	/**
+	 * @throws IllegalArgumentException
+	 *             if there are more indicators than hyperparameters or the time index is not a hyperparameter.
+	 */
+	public SearchSpace(int numHyperparameters, int numIndicators, int timeIndex)
+	{
+		if(numHyperparameters < 0 || numIndicators < 0 || numIndicators > numHyperparameters)
+			throw new IllegalArgumentException("A search space cannot have " + numHyperparameters + " hyperparameters and " + numIndicators + " indicators.");
+		if(timeIndex < -1 || timeIndex >= numHyperparameters)
+			throw new IllegalArgumentException("The time index " + timeIndex + " is not a hyperparameter.");
+		this.numHyperparameters = numHyperparameters;
+		this.numIndicators = numIndicators;
+		this.timeIndex = timeIndex;
+	}
+
+	public int numHyperparameters()
+	{
+		return this.numHyperparameters;
+	}
+
+	public int numIndicators()
+	{
+		return this.numIndicators;
+	}
+
+	public int getTimeIndex()
+	{
+		return this.timeIndex;
+	}
+
+	public boolean isIndicator(int index)
+	{
+		return index < this.numIndicators;
+	}
+
+	@Override
+	public String toString()
+	{
+		return this.numHyperparameters + " hyperparameters, " + this.numIndicators + " indicators" + (this.timeIndex >= 0 ? ", time index " + this.timeIndex : "");
+	}
+}
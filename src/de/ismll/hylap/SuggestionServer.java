@@ -0,0 +1,377 @@
+package de.ismll.hylap;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.PrintWriter;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.net.SocketException;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.IdentityHashMap;
+import java.util.Random;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import de.ismll.core.DenseInstances;
+import de.ismll.core.Instance;
+import de.ismll.core.Logger;
+import de.ismll.hylap.acquisitionFunction.ExpectedImprovement;
+import de.ismll.hylap.surrogateModel.BaseModelBank;
+import de.ismll.hylap.surrogateModel.ModelStore;
+import de.ismll.hylap.surrogateModel.TwoStageSurrogate;
+
+/**
+ * Resident server that loads the meta-data sets and trains the GPs of the {@link BaseModelBank} once and then serves any number of ask/tell
+ * sessions over a local socket. Every session has its own {@link TwoStageSurrogate}, i.e. its own target GP and similarities, on a private copy of
+ * its candidates, while the GPs of the bank are shared and only read.
+ *
+ * The protocol is line based, every request is answered by one line starting with "OK" or "ERR &lt;message&gt;":
+ * <ul>
+ * <li>OPEN &lt;dataset&gt; &lt;tst-r|tst-m&gt; &lt;bandwidth&gt; [kb|cl-min|cl-mean|cl-max]: OK &lt;session&gt;. The data set is the name of a file
+ * of the data folder, which is excluded from the bank and whose instances are the candidates. Other paths are rejected.</li>
+ * <li>ASK &lt;session&gt;: OK &lt;id&gt; &lt;hyperparameter values&gt; or OK NONE if all candidates were suggested. The id is the row of the candidate in the
+ * data set.</li>
+ * <li>TELL &lt;session&gt; &lt;id&gt; &lt;target&gt;: OK &lt;best target&gt;</li>
+ * <li>CLOSE &lt;session&gt;: OK</li>
+ * <li>QUIT: closes the connection.</li>
+ * </ul>
+ * Sessions are not bound to connections, so workers on different connections can tell results of the same session.
+ */
+public class SuggestionServer
+{
+	private File[] files;
+
+	private BaseModelBank bank;
+
+	private ConcurrentHashMap<Integer, Session> sessions = new ConcurrentHashMap<Integer, Session>();
+
+	private AtomicInteger nextSession = new AtomicInteger();
+
+	private volatile ServerSocket server;
+
+	private volatile boolean stopped;
+
+	/**
+	 * Open connections, which are closed when the server stops.
+	 */
+	private Set<Socket> connections = Collections.newSetFromMap(new ConcurrentHashMap<Socket, Boolean>());
+
+	public static void help()
+	{
+		System.out
+				.println("============= Mandatory Parameters =============\n"
+						+ "-f\t\tPath to the folder where your datasets are stored.\n"
+						+ "-hpRange\tNumber of hyperparameters (SVM: 6, Weka: 103)\n"
+						+ "-hpIndicatorRange\tNumber of hyperparameters that are indicators (SVM: 3, Weka: 64)\n"
+						+ "\n============= Optional Parameters =============\n"
+						+ "-port\t\tPort on the loopback interface (default: 5140)\n"
+						+ "-sparseGrid\tWhether to use only a subgrid of the data for training (default: true)\n"
+						+ "-threads\tNumber of threads used for training the surrogates (default: number of processors)\n"
+						+ "-modelStore\tFolder where trained surrogates are stored and loaded from (default: none)\n"
+						+ "-sharedKernel\tWhether the surrogates of all training data sets share one kernel (default: false)"
+						);
+		System.exit(0);
+	}
+
+	public static void main(String[] args) throws IOException
+	{
+		HashMap<String, String> argsMap = new HashMap<String, String>();
+		for(int i = 0; i < args.length; i++)
+			argsMap.put(args[i], args[++i]);
+
+		if(!argsMap.containsKey("-f") || !argsMap.containsKey("-hpRange") || !argsMap.containsKey("-hpIndicatorRange"))
+			help();
+		SearchSpace space = new SearchSpace(Integer.parseInt(argsMap.get("-hpRange")), Integer.parseInt(argsMap.get("-hpIndicatorRange")));
+		int port = argsMap.containsKey("-port") ? Integer.parseInt(argsMap.get("-port")) : 5140;
+		boolean sparseGrid = true;
+		if(argsMap.containsKey("-sparseGrid"))
+			sparseGrid = Boolean.parseBoolean(argsMap.get("-sparseGrid"));
+		int numThreads = Runtime.getRuntime().availableProcessors();
+		if(argsMap.containsKey("-threads"))
+			numThreads = Integer.parseInt(argsMap.get("-threads"));
+
+		File[] files = new File(argsMap.get("-f")).listFiles();
+		Logger.info("Loading data sets from " + new File(argsMap.get("-f")).getAbsolutePath() + ".");
+		BaseModelBank bank = new BaseModelBank(SMBOMain.readDataSets(files, space, sparseGrid, numThreads), space, numThreads);
+		if(argsMap.containsKey("-modelStore"))
+		{
+			String[] names = new String[files.length];
+			for(int i = 0; i < files.length; i++)
+				names[i] = files[i].getName();
+			bank.setModelStore(new ModelStore(new File(argsMap.get("-modelStore"))), names);
+		}
+		if(argsMap.containsKey("-sharedKernel"))
+			bank.setSharedKernel(Boolean.parseBoolean(argsMap.get("-sharedKernel")));
+		// Trains all GPs before the first session is opened.
+		bank.getModels(-1);
+
+		final SuggestionServer server = new SuggestionServer(files, bank);
+		Runtime.getRuntime().addShutdownHook(new Thread()
+		{
+			@Override
+			public void run()
+			{
+				server.stop();
+			}
+		});
+		server.serve(port);
+	}
+
+	public SuggestionServer(File[] files, BaseModelBank bank)
+	{
+		this.files = files;
+		this.bank = bank;
+	}
+
+	/**
+	 * Accepts connections on the loopback interface until {@link #stop()} is called. Every connection is served by its own thread.
+	 */
+	public void serve(int port) throws IOException
+	{
+		ServerSocket server = new ServerSocket(port, 50, InetAddress.getByName("127.0.0.1"));
+		this.server = server;
+		if(this.stopped)
+			server.close();
+		Logger.info("Serving suggestions on port " + server.getLocalPort() + ".");
+		ExecutorService pool = Executors.newCachedThreadPool();
+		try
+		{
+			while(!this.stopped)
+			{
+				final Socket socket;
+				try
+				{
+					socket = server.accept();
+				}
+				catch(SocketException e)
+				{
+					// The server socket was closed by stop().
+					if(this.stopped)
+						break;
+					throw e;
+				}
+				this.connections.add(socket);
+				pool.execute(new Runnable()
+				{
+					@Override
+					public void run()
+					{
+						handle(socket);
+					}
+				});
+			}
+		}
+		finally
+		{
+			server.close();
+			for(Socket socket : this.connections)
+				close(socket);
+			pool.shutdownNow();
+		}
+		Logger.info("Stopped serving suggestions.");
+	}
+
+	/**
+	 * Stops {@link #serve(int)} by closing the server socket, e.g. from a shutdown hook. {@link #serve(int)} then closes all open connections.
+	 */
+	public void stop()
+	{
+		this.stopped = true;
+		ServerSocket server = this.server;
+		if(server != null)
+		{
+			try
+			{
+				server.close();
+			}
+			catch(IOException e)
+			{
+				Logger.warning("Server socket cannot be closed: " + e.getMessage());
+			}
+		}
+	}
+
+	private void handle(Socket socket)
+	{
+		try
+		{
+			BufferedReader in = new BufferedReader(new InputStreamReader(socket.getInputStream(), "US-ASCII"));
+			PrintWriter out = new PrintWriter(socket.getOutputStream(), true);
+			for(String line = in.readLine(); line != null; line = in.readLine())
+			{
+				line = line.trim();
+				if(line.equals("QUIT"))
+					break;
+				if(line.isEmpty())
+					continue;
+				String response;
+				try
+				{
+					String result = this.execute(line.split("\\s+"));
+					response = result.isEmpty() ? "OK" : "OK " + result;
+				}
+				catch(RuntimeException e)
+				{
+					response = "ERR " + e.getMessage();
+				}
+				catch(IOException e)
+				{
+					response = "ERR " + e.getMessage();
+				}
+				out.println(response);
+			}
+		}
+		catch(IOException e)
+		{
+			// Connections are closed on purpose when the server stops.
+			if(!this.stopped)
+				Logger.warning("Connection failed: " + e.getMessage());
+		}
+		finally
+		{
+			this.connections.remove(socket);
+			close(socket);
+		}
+	}
+
+	private static void close(Socket socket)
+	{
+		try
+		{
+			socket.close();
+		}
+		catch(IOException e)
+		{
+			Logger.warning("Connection cannot be closed: " + e.getMessage());
+		}
+	}
+
+	/**
+	 * Executes a request and returns the response without the leading "OK", which may be empty.
+	 *
+	 * @throws IllegalArgumentException
+	 *             if the request is malformed.
+	 */
+	String execute(String[] request) throws IOException
+	{
+		String command = request[0];
+		if(command.equals("OPEN"))
+		{
+			checkLength(request, 4, 5);
+			int strategy = request.length == 5 ? parseStrategy(request[4]) : SMBO.KRIGING_BELIEVER;
+			int id = this.nextSession.getAndIncrement();
+			this.sessions.put(id, this.open(id, request[1], request[2], Double.parseDouble(request[3]), strategy));
+			return Integer.toString(id);
+		}
+		if(command.equals("ASK"))
+		{
+			checkLength(request, 2, 2);
+			Session session = this.getSession(request[1]);
+			Instance x = session.smbo.ask();
+			if(x == null)
+				return "NONE";
+			StringBuilder response = new StringBuilder().append(session.ids.get(x));
+			for(int i = 0; i < this.bank.getSearchSpace().numHyperparameters(); i++)
+				response.append(' ').append(x.getValue(i));
+			return response.toString();
+		}
+		if(command.equals("TELL"))
+		{
+			checkLength(request, 4, 4);
+			Session session = this.getSession(request[1]);
+			int id = Integer.parseInt(request[2]);
+			if(id < 0 || id >= session.candidates.numInstances())
+				throw new IllegalArgumentException("Unknown candidate " + id + ".");
+			session.smbo.tell(session.candidates.instance(id), Double.parseDouble(request[3]));
+			return Double.toString(session.smbo.getTrace(session.smbo.numTold() - 1)[0]);
+		}
+		if(command.equals("CLOSE"))
+		{
+			checkLength(request, 2, 2);
+			if(this.sessions.remove(parseSession(request[1])) == null)
+				throw new IllegalArgumentException("Unknown session " + request[1] + ".");
+			return "";
+		}
+		throw new IllegalArgumentException("Unknown command " + command + ".");
+	}
+
+	/**
+	 * Ties of the acquisition function are broken with a random number generator seeded with the session id.
+	 */
+	private Session open(int id, String dataset, String surrogate, double bandwidth, int strategy) throws IOException
+	{
+		if(!surrogate.equals("tst-r") && !surrogate.equals("tst-m"))
+			throw new IllegalArgumentException("Unknown surrogate function " + surrogate + ".");
+		if(!(bandwidth > 0))
+			throw new IllegalArgumentException("Bandwidth not positive.");
+		int testId = -1;
+		for(int i = 0; i < this.files.length; i++)
+		{
+			if(this.files[i].getName().equals(dataset))
+				testId = i;
+		}
+		// Only names of the data folder are accepted, so clients cannot probe or read other files.
+		if(testId == -1)
+			throw new IllegalArgumentException("Unknown data set " + dataset + ".");
+		File file = this.files[testId];
+
+		// The candidates are read again since their targets are overwritten by the told results.
+		Session session = new Session();
+		session.candidates = DenseInstances.read(file);
+		session.ids = new IdentityHashMap<Instance, Integer>();
+		for(int i = 0; i < session.candidates.numInstances(); i++)
+			session.ids.put(session.candidates.instance(i), i);
+		TwoStageSurrogate tst = new TwoStageSurrogate(this.bank, testId, session.candidates, bandwidth, surrogate.equals("tst-m"));
+		session.smbo = new AsyncSMBO(new SMBO(session.candidates, new ExpectedImprovement(), tst, new Random(id)), strategy);
+		Logger.info("Opened a session on " + file.getName() + " with " + session.candidates.numInstances() + " candidates.");
+		return session;
+	}
+
+	private Session getSession(String id)
+	{
+		Session session = this.sessions.get(parseSession(id));
+		if(session == null)
+			throw new IllegalArgumentException("Unknown session " + id + ".");
+		return session;
+	}
+
+	private static Integer parseSession(String id)
+	{
+		return Integer.valueOf(id);
+	}
+
+	private static int parseStrategy(String strategy)
+	{
+		if(strategy.equals("kb"))
+			return SMBO.KRIGING_BELIEVER;
+		if(strategy.equals("cl-min"))
+			return SMBO.CONSTANT_LIAR_MIN;
+		if(strategy.equals("cl-mean"))
+			return SMBO.CONSTANT_LIAR_MEAN;
+		if(strategy.equals("cl-max"))
+			return SMBO.CONSTANT_LIAR_MAX;
+		throw new IllegalArgumentException("Unknown fantasy strategy " + strategy + ".");
+	}
+
+	private static void checkLength(String[] request, int min, int max)
+	{
+		if(request.length < min || request.length > max)
+			throw new IllegalArgumentException(request[0] + " expects " + (min == max ? "" + (min - 1) : (min - 1) + " to " + (max - 1)) + " arguments.");
+	}
+
+	private static class Session
+	{
+		private DenseInstances candidates;
+
+		private IdentityHashMap<Instance, Integer> ids;
+
+		private AsyncSMBO smbo;
+	}
+}
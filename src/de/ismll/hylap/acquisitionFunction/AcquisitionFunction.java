@@ -1,6 +1,7 @@
 package de.ismll.hylap.acquisitionFunction;
 
 import java.util.ArrayList;
+import java.util.Random;
 
 import de.ismll.core.Instance;
 import de.ismll.core.Instances;
@@ -8,5 +9,8 @@ import de.ismll.hylap.surrogateModel.SurrogateModel;
 
 public interface AcquisitionFunction
 {
-	public Instance getNext(Instances h, SurrogateModel surrogateModel, ArrayList<Instance> candidates);
+	/**
+	 * Returns the candidate with the best acquisition value. Ties are broken with the random number generator of the session.
+	 */
+	public Instance getNext(Instances h, SurrogateModel surrogateModel, ArrayList<Instance> candidates, Random random);
 }
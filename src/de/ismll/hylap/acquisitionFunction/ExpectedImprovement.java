@@ -1,45 +1,112 @@
 package de.ismll.hylap.acquisitionFunction;
 
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Random;
+import java.util.concurrent.ExecutorService;
 
-import org.apache.commons.math3.distribution.NormalDistribution;
-
+import de.ismll.core.Gaussian;
 import de.ismll.core.Instance;
 import de.ismll.core.Instances;
-import de.ismll.core.Random;
+import de.ismll.core.Parallel;
 import de.ismll.hylap.surrogateModel.SurrogateModel;
 
 public class ExpectedImprovement implements AcquisitionFunction
 {
 	private double xi = 0.01;
 
-	private static final NormalDistribution ndist = new NormalDistribution();
+	/**
+	 * Pool on which large candidate pools are predicted and scanned, or null.
+	 */
+	private ExecutorService pool;
+
+	private int maxChunks;
+
+	/**
+	 * Minimum estimated cost of predicting a chunk of candidates, in multiply-adds. Cheaper pools are predicted and scanned by the calling thread only,
+	 * since handing a chunk to another thread costs about as much.
+	 */
+	private static final long MIN_CHUNK_COST = 1 << 17;
+
+	public ExpectedImprovement()
+	{
+		this(null, 1);
+	}
 
+	/**
+	 * @param pool
+	 *            Pool on which large candidate pools are predicted and scanned in chunks. It is owned by the caller, which shuts it down, and can be
+	 *            shared by several acquisition functions. The chosen candidate does not depend on it.
+	 * @param maxChunks
+	 *            Maximum number of chunks a candidate pool is split into.
+	 */
+	public ExpectedImprovement(ExecutorService pool, int maxChunks)
+	{
+		this.pool = pool;
+		this.maxChunks = maxChunks;
+	}
+
+	/**
+	 * The candidates are split into contiguous chunks, and every chunk is predicted by the surrogate model and scanned for its best expected
+	 * improvement and all its candidates reaching it. Predicting a candidate with the target GP costs about n^2 + n * d multiply-adds for n
+	 * observations, which decides the number of chunks. The chunks are merged in candidate order, so the set of best candidates and the random choice
+	 * among them are the same as for a serial scan.
+	 */
 	@Override
-	public Instance getNext(Instances h, SurrogateModel surrogateModel, ArrayList<Instance> candidates)
+	public Instance getNext(Instances h, final SurrogateModel surrogateModel, final ArrayList<Instance> candidates, Random random)
 	{
-		ArrayList<Instance> bestCandidates = new ArrayList<Instance>();
-		double bestEI = -1;
 		double yMax = -1;
-
 		for(int i = 0; i < h.numInstances(); i++)
 			yMax = Math.max(h.instance(i).target(), yMax);
 
-		for(Instance c : candidates)
+		final double y = yMax;
+		final int n = candidates.size();
+		long costPerCandidate = (long) h.numInstances() * (h.numInstances() + h.numValues()) + 1;
+		final int numChunks = this.pool == null ? 1 : (int) Math.max(1, Math.min(this.maxChunks, n * costPerCandidate / MIN_CHUNK_COST));
+		final double[] bestEI = new double[numChunks];
+		final int[][] best = new int[numChunks][];
+		final int[] numBest = new int[numChunks];
+		Parallel.forEach(numChunks, numChunks > 1 ? this.pool : null, new Parallel.Task()
 		{
-			double[] yHat = surrogateModel.predict(c);
-			double ei = this.getEI(yHat[0], yHat[1], yMax);
-
-			if(bestEI < ei)
+			@Override
+			public void run(int chunk)
 			{
-				bestEI = ei;
-				bestCandidates.clear();
-				bestCandidates.add(c);
+				int from = (int) ((long) n * chunk / numChunks), to = (int) ((long) n * (chunk + 1) / numChunks);
+				double[][] yHat = surrogateModel.predict(candidates.subList(from, to));
+				int[] bestCandidates = new int[16];
+				int count = 0;
+				double chunkBestEI = -1;
+				for(int i = from; i < to; i++)
+				{
+					double ei = getEI(yHat[0][i - from], yHat[1][i - from], y);
+					if(chunkBestEI < ei)
+					{
+						chunkBestEI = ei;
+						count = 0;
+					}
+					if(chunkBestEI == ei)
+					{
+						if(count == bestCandidates.length)
+							bestCandidates = Arrays.copyOf(bestCandidates, 2 * count);
+						bestCandidates[count++] = i;
+					}
+				}
+				bestEI[chunk] = chunkBestEI;
+				best[chunk] = bestCandidates;
+				numBest[chunk] = count;
 			}
-			else if(bestEI == ei)
-				bestCandidates.add(c);
-		}
-		return bestCandidates.get((Random.nextInt(bestCandidates.size())));
+		});
+
+		double maxEI = -1;
+		for(int chunk = 0; chunk < numChunks; chunk++)
+			if(maxEI < bestEI[chunk])
+				maxEI = bestEI[chunk];
+		ArrayList<Instance> bestCandidates = new ArrayList<Instance>();
+		for(int chunk = 0; chunk < numChunks; chunk++)
+			if(bestEI[chunk] == maxEI)
+				for(int i = 0; i < numBest[chunk]; i++)
+					bestCandidates.add(candidates.get(best[chunk][i]));
+		return bestCandidates.get((random.nextInt(bestCandidates.size())));
 	}
 	
 	public double getEI(double mu, double sigma, double yMax)
@@ -48,7 +115,7 @@ public class ExpectedImprovement implements AcquisitionFunction
 		if(sigma > 0)
 		{
 			double Z = (mu - xi - yMax) / sigma;
-			ei = (mu - xi - yMax) * ndist.cumulativeProbability(Z) + sigma * ndist.density(Z);
+			ei = (mu - xi - yMax) * Gaussian.cdf(Z) + sigma * Gaussian.pdf(Z);
 		}
 		return ei;
 	}
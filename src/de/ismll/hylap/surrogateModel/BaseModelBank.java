@@ -0,0 +1,210 @@
+package de.ismll.hylap.surrogateModel;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashMap;
+
+import de.ismll.core.DenseInstances;
+import de.ismll.core.Instance;
+import de.ismll.core.InstanceUtils;
+import de.ismll.core.Instances;
+import de.ismll.core.Logger;
+import de.ismll.core.Parallel;
+import de.ismll.core.regression.GaussianProcessRegression;
+import de.ismll.hylap.SearchSpace;
+import de.ismll.kernel.SEARDKernel;
+
+/**
+ * The GPs of the first stage of TST, one per meta-data set. A GP only depends on its own data set, so every GP is trained at most once and then
+ * serves all leave-one-data-set-out configurations by excluding the test data set.
+ */
+public class BaseModelBank
+{
+	private Instances[] data;
+
+	private SearchSpace space;
+
+	private GaussianProcessRegression[] gp;
+
+	private int numThreads;
+
+	private ModelStore store;
+
+	private String[] names;
+
+	/**
+	 * Whether all GPs share one kernel learned on all data sets, see {@link #setSharedKernel(boolean)}.
+	 */
+	private boolean sharedKernel = false;
+
+	/**
+	 * GPs with a shared kernel for every excluded data set. The shared kernel depends on all data sets it was learned on, so it cannot be reused across
+	 * different excluded data sets.
+	 */
+	private HashMap<Integer, GaussianProcessRegression[]> sharedModels = new HashMap<Integer, GaussianProcessRegression[]>();
+
+	/**
+	 * Number of epochs used to learn the kernel parameters of each GP.
+	 */
+	private static final int EPOCHS = 100;
+
+	/**
+	 * @param numThreads
+	 *            Number of threads used to train the GPs. The result does not depend on it.
+	 */
+	public BaseModelBank(Instances[] data, SearchSpace space, int numThreads)
+	{
+		this.data = data;
+		this.space = space;
+		this.gp = new GaussianProcessRegression[data.length];
+		this.numThreads = numThreads;
+	}
+
+	/**
+	 * Loads the GPs from the store instead of training them, and saves newly trained GPs to it.
+	 * 
+	 * @param names
+	 *            Names of the data sets, used as part of the key.
+	 */
+	public void setModelStore(ModelStore store, String[] names)
+	{
+		this.store = store;
+		this.names = names;
+	}
+
+	/**
+	 * Learns one kernel for all data sets instead of one per data set by summing the gradients of their likelihoods. This requires all data sets to have
+	 * the same hyperparameter configurations, but then needs only one factorization per epoch for all of them. The model store is not used in this mode.
+	 */
+	public void setSharedKernel(boolean sharedKernel)
+	{
+		this.sharedKernel = sharedKernel;
+	}
+
+	public SearchSpace getSearchSpace()
+	{
+		return this.space;
+	}
+
+	public int size()
+	{
+		return this.data.length;
+	}
+
+	/**
+	 * Returns the data sets without the excluded one. Use -1 to exclude none.
+	 */
+	public Instances[] getData(int excluded)
+	{
+		return this.exclude(this.data, new Instances[this.size() - (excluded >= 0 ? 1 : 0)], excluded);
+	}
+
+	/**
+	 * Returns the GPs of all data sets without the excluded one, training those that were not needed before. Use -1 to exclude none.
+	 */
+	public synchronized GaussianProcessRegression[] getModels(int excluded)
+	{
+		if(this.sharedKernel)
+		{
+			GaussianProcessRegression[] models = this.sharedModels.get(excluded);
+			if(models == null)
+			{
+				Instances[] data = this.getData(excluded);
+				Instances[] scaledData = new Instances[data.length];
+				for(int d = 0; d < data.length; d++)
+					scaledData[d] = scale(data[d], this.space.numHyperparameters());
+				models = GaussianProcessRegression.trainShared(scaledData, new SEARDKernel(this.space.numHyperparameters()), EPOCHS);
+				this.sharedModels.put(excluded, models);
+			}
+			return models;
+		}
+		final ArrayList<Integer> missing = new ArrayList<Integer>();
+		for(int d = 0; d < this.size(); d++)
+			if(d != excluded && this.gp[d] == null)
+				missing.add(d);
+		Parallel.forEach(missing.size(), this.numThreads, new Parallel.Task()
+		{
+			@Override
+			public void run(int index)
+			{
+				int d = missing.get(index);
+				Instances scaledTrain = scale(data[d], space.numHyperparameters());
+				String setup = "SEARDKernel;epochs=" + EPOCHS;
+				GaussianProcessRegression gp = store == null ? null : store.load(names[d], scaledTrain, setup);
+				if(gp == null)
+				{
+					gp = new GaussianProcessRegression();
+					gp.setKernel(new SEARDKernel(space.numHyperparameters()));
+					gp.setLearnKernelParameters(true);
+					gp.setEpochs(EPOCHS);
+					gp.train(scaledTrain);
+					if(store != null)
+					{
+						try
+						{
+							store.save(names[d], scaledTrain, setup, gp);
+						}
+						catch(IOException e)
+						{
+							Logger.warning("Model for " + names[d] + " cannot be stored: " + e.getMessage());
+						}
+					}
+				}
+				BaseModelBank.this.gp[d] = gp;
+			}
+		});
+		return this.exclude(this.gp, new GaussianProcessRegression[this.size() - (excluded >= 0 ? 1 : 0)], excluded);
+	}
+
+	/**
+	 * Predicts the test data with the GPs of all data sets without the excluded one.
+	 */
+	public PredictionTable predict(final Instances test, int excluded)
+	{
+		final GaussianProcessRegression[] models = this.getModels(excluded);
+		final PredictionTable cachedPredictions = new PredictionTable(test, models.length);
+		final Instances projectedTest = test.project(this.space.numHyperparameters());
+		Parallel.forEach(models.length, this.numThreads, new Parallel.Task()
+		{
+			@Override
+			public void run(int d)
+			{
+				double[] predictions = cachedPredictions.getPredictions(d);
+				for(int i = 0; i < projectedTest.numInstances(); i++)
+					predictions[i] = models[d].predict(projectedTest.instance(i));
+			}
+		});
+		return cachedPredictions;
+	}
+
+	private <T> T[] exclude(T[] source, T[] target, int excluded)
+	{
+		for(int d = 0, l = 0; d < source.length; d++)
+			if(d != excluded)
+				target[l++] = source[d];
+		return target;
+	}
+
+	/**
+	 * Restricts the instances to the first numHyperparameters values and scales the targets to [0, 1].
+	 */
+	static Instances scale(Instances train, int numHyperparameters)
+	{
+		DenseInstances scaledTrain = new DenseInstances(numHyperparameters, train.numInstances());
+		double max = Double.NEGATIVE_INFINITY;
+		double min = Double.POSITIVE_INFINITY;
+		for(int j = 0; j < train.numInstances(); j++)
+		{
+			double target = train.instance(j).target();
+			max = Math.max(target, max);
+			min = Math.min(target, min);
+		}
+
+		for(int j = 0; j < train.numInstances(); j++)
+		{
+			Instance instance = train.instance(j);
+			scaledTrain.add((instance.target() - min) / ((max - min) == 0 ? 1 : (max - min)), InstanceUtils.copyValues(instance, 0, numHyperparameters), 0);
+		}
+		return scaledTrain;
+	}
+}
@@ -0,0 +1,124 @@
+package de.ismll.hylap.surrogateModel;
+
+import java.util.Arrays;
+
+/**
+ * Counts the pairs i < j for which exactly one of t[i] < t[j] and p[i] < p[j] holds, the discordant pairs of the Kendall tau correlation between
+ * targets and predictions. Ties are counted exactly as in the quadratic definition.
+ */
+abstract class DiscordantPairs
+{
+	/**
+	 * Counts the discordant pairs among the first n entries in O(n log^2 n). With A the number of pairs ascending in t, B the number ascending in p and C
+	 * the number ascending in both, the result is A + B - 2C. A and B are counted with a Fenwick tree, C with a merge sort over the index in which
+	 * every merge step counts the pairs across both halves with a Fenwick tree.
+	 */
+	static long count(double[] t, double[] p, int n)
+	{
+		int[] tRank = ranks(t, n);
+		int[] pRank = ranks(p, n);
+		long[] tree = new long[n + 1];
+		long count = countAscendingPairs(tRank, tree) + countAscendingPairs(pRank, tree);
+		int[] order = new int[n];
+		for(int i = 0; i < n; i++)
+			order[i] = i;
+		return count - 2 * countDoublyAscendingPairs(order, new int[n], tRank, pRank, tree, 0, n);
+	}
+
+	/**
+	 * Counts the discordant pairs (i, n - 1) with i < n - 1 in O(n), i.e. the pairs added by appending the (n - 1)-th entry.
+	 */
+	static long countNew(double[] t, double[] p, int n)
+	{
+		long count = 0;
+		double tNew = t[n - 1], pNew = p[n - 1];
+		for(int i = 0; i < n - 1; i++)
+		{
+			if(t[i] < tNew ^ p[i] < pNew)
+				count++;
+		}
+		return count;
+	}
+
+	/**
+	 * Dense ranks starting at 1, equal values share their rank.
+	 */
+	private static int[] ranks(double[] x, int n)
+	{
+		double[] sorted = new double[n];
+		for(int i = 0; i < n; i++)
+			sorted[i] = x[i] + 0.0; // -0.0 and 0.0 are equal with respect to <
+		Arrays.sort(sorted);
+		int distinct = 0;
+		for(int i = 0; i < n; i++)
+		{
+			if(i == 0 || sorted[i] != sorted[distinct - 1])
+				sorted[distinct++] = sorted[i];
+		}
+		int[] rank = new int[n];
+		for(int i = 0; i < n; i++)
+			rank[i] = Arrays.binarySearch(sorted, 0, distinct, x[i] + 0.0) + 1;
+		return rank;
+	}
+
+	private static long countAscendingPairs(int[] rank, long[] tree)
+	{
+		long count = 0;
+		for(int j = 0; j < rank.length; j++)
+		{
+			count += prefixSum(tree, rank[j] - 1);
+			add(tree, rank[j], 1);
+		}
+		for(int j = 0; j < rank.length; j++)
+			add(tree, rank[j], -1);
+		return count;
+	}
+
+	/**
+	 * Counts the pairs i < j within [lo, hi) ascending in both ranks. Afterwards order[lo, hi) is sorted by tRank.
+	 */
+	private static long countDoublyAscendingPairs(int[] order, int[] buffer, int[] tRank, int[] pRank, long[] tree, int lo, int hi)
+	{
+		if(hi - lo < 2)
+			return 0;
+		int mid = (lo + hi) >>> 1;
+		long count = countDoublyAscendingPairs(order, buffer, tRank, pRank, tree, lo, mid) + countDoublyAscendingPairs(order, buffer, tRank, pRank, tree, mid, hi);
+
+		// Both halves are sorted by tRank now and every index of the left half is smaller than every index of the right half.
+		int left = lo;
+		for(int right = mid; right < hi; right++)
+		{
+			int j = order[right];
+			for(; left < mid && tRank[order[left]] < tRank[j]; left++)
+				add(tree, pRank[order[left]], 1);
+			count += prefixSum(tree, pRank[j] - 1);
+		}
+		for(int k = lo; k < left; k++)
+			add(tree, pRank[order[k]], -1);
+
+		int a = lo, b = mid, k = lo;
+		while(a < mid || b < hi)
+		{
+			if(b == hi || a < mid && tRank[order[a]] <= tRank[order[b]])
+				buffer[k++] = order[a++];
+			else
+				buffer[k++] = order[b++];
+		}
+		System.arraycopy(buffer, lo, order, lo, hi - lo);
+		return count;
+	}
+
+	private static void add(long[] tree, int index, long value)
+	{
+		for(; index < tree.length; index += index & -index)
+			tree[index] += value;
+	}
+
+	private static long prefixSum(long[] tree, int index)
+	{
+		long sum = 0;
+		for(; index > 0; index -= index & -index)
+			sum += tree[index];
+		return sum;
+	}
+}
@@ -0,0 +1,128 @@
+package de.ismll.hylap.surrogateModel;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+
+import de.ismll.core.Instance;
+import de.ismll.core.Instances;
+import de.ismll.core.Logger;
+import de.ismll.core.regression.GaussianProcessRegression;
+
+/**
+ * Directory of trained GPs, stored as binary snapshots. A snapshot is keyed by the name of its data set and a hash of the training data and the
+ * training setup, so a changed data set or setup is never served a stale model. A snapshot is read through a memory-mapped file, but the restored GP
+ * holds copies of all its values, so loading saves the training time and not memory.
+ */
+public class ModelStore
+{
+	private File directory;
+
+	public ModelStore(File directory) throws IOException
+	{
+		if(!directory.isDirectory() && !directory.mkdirs())
+			throw new IOException("Model store " + directory.getAbsolutePath() + " cannot be created.");
+		this.directory = directory;
+	}
+
+	/**
+	 * Returns the stored GP for the data set or null if there is no valid snapshot for this training data and setup.
+	 */
+	public GaussianProcessRegression load(String name, Instances train, String setup)
+	{
+		File file = this.getFile(name, train, setup);
+		if(!file.exists())
+			return null;
+		try
+		{
+			RandomAccessFile raf = new RandomAccessFile(file, "r");
+			try
+			{
+				FileChannel channel = raf.getChannel();
+				return GaussianProcessRegression.fromByteBuffer(channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size()));
+			}
+			finally
+			{
+				raf.close();
+			}
+		}
+		catch(IOException e)
+		{
+			Logger.warning("Model " + file.getAbsolutePath() + " cannot be read: " + e.getMessage());
+		}
+		catch(IllegalArgumentException e)
+		{
+			Logger.warning("Model " + file.getAbsolutePath() + " is invalid: " + e.getMessage());
+		}
+		return null;
+	}
+
+	/**
+	 * Stores the GP trained on the data set. The snapshot is written to a temporary file first, so concurrent readers never see a partial snapshot.
+	 */
+	public void save(String name, Instances train, String setup, GaussianProcessRegression gp) throws IOException
+	{
+		File file = this.getFile(name, train, setup);
+		File tmp = File.createTempFile(file.getName(), ".tmp", this.directory);
+		ByteBuffer buffer = gp.toByteBuffer();
+		RandomAccessFile raf = new RandomAccessFile(tmp, "rw");
+		try
+		{
+			FileChannel channel = raf.getChannel();
+			while(buffer.hasRemaining())
+				channel.write(buffer);
+		}
+		finally
+		{
+			raf.close();
+		}
+		if(!tmp.renameTo(file))
+		{
+			// Another process may have stored the same model in the meantime.
+			if(!tmp.delete() || !file.exists())
+				throw new IOException("Model " + file.getAbsolutePath() + " cannot be written.");
+		}
+	}
+
+	private File getFile(String name, Instances train, String setup)
+	{
+		return new File(this.directory, name + "-" + hash(train, setup) + ".gp");
+	}
+
+	/**
+	 * SHA-1 over the setup description, the targets and the values of all instances.
+	 */
+	static String hash(Instances train, String setup)
+	{
+		try
+		{
+			MessageDigest digest = MessageDigest.getInstance("SHA-1");
+			digest.update(setup.getBytes("UTF-8"));
+			ByteBuffer buffer = ByteBuffer.allocate(8 * (train.numValues() + 1));
+			for(Instance instance : train)
+			{
+				buffer.clear();
+				buffer.putDouble(instance.target());
+				for(int j = 0; j < train.numValues(); j++)
+					buffer.putDouble(instance.getValue(j));
+				digest.update(buffer.array(), 0, buffer.position());
+			}
+			StringBuilder sb = new StringBuilder();
+			for(byte b : digest.digest())
+				sb.append(String.format("%02x", b));
+			return sb.toString();
+		}
+		catch(NoSuchAlgorithmException e)
+		{
+			throw new IllegalStateException(e);
+		}
+		catch(IOException e)
+		{
+			throw new IllegalStateException(e);
+		}
+	}
+}
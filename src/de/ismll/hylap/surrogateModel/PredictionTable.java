@@ -0,0 +1,124 @@
+package de.ismll.hylap.surrogateModel;
+
+import java.util.IdentityHashMap;
+
+import de.ismll.core.DenseInstances;
+import de.ismll.core.Instance;
+import de.ismll.core.Instances;
+
+/**
+ * Predictions of the base models for a fixed set of candidates. Every candidate gets a stable integer id, its position in the candidate instances,
+ * and the predictions are stored in one primitive row per model, so loops over candidates stream through contiguous memory. If the candidates are
+ * {@link DenseInstances}, the id of a candidate is its row, which it carries itself, otherwise it is looked up by identity. The candidates must not be
+ * reordered while the table is used.
+ */
+public class PredictionTable
+{
+	private double[][] predictions;
+
+	/**
+	 * Ids of the candidates if they are not dense, otherwise null.
+	 */
+	private IdentityHashMap<Instance, Integer> ids;
+
+	private Instances candidates;
+
+	private DenseInstances denseCandidates;
+
+	private int numCandidates;
+
+	public PredictionTable(Instances candidates, int numModels)
+	{
+		this(candidates, new double[numModels][candidates.numInstances()]);
+	}
+
+	private PredictionTable(Instances candidates, double[][] predictions)
+	{
+		this.candidates = candidates;
+		this.predictions = predictions;
+		this.numCandidates = candidates.numInstances();
+		if(candidates instanceof DenseInstances)
+			this.denseCandidates = (DenseInstances) candidates;
+		else
+		{
+			this.ids = new IdentityHashMap<Instance, Integer>(candidates.numInstances());
+			for(int i = 0; i < candidates.numInstances(); i++)
+				this.ids.put(candidates.instance(i), i);
+		}
+	}
+
+	/**
+	 * Returns a table for a copy of the candidates in the same order, e.g. a private copy of a session whose targets are overwritten. The predictions
+	 * are shared with this table and not copied.
+	 *
+	 * @throws IllegalArgumentException
+	 *             if the number of candidates differs.
+	 */
+	public PredictionTable forCandidates(Instances candidates)
+	{
+		if(candidates.numInstances() != this.candidates.numInstances())
+			throw new IllegalArgumentException("The copy has " + candidates.numInstances() + " candidates instead of " + this.candidates.numInstances() + ".");
+		return new PredictionTable(candidates, this.predictions);
+	}
+
+	/**
+	 * Returns the id of the candidate.
+	 *
+	 * @throws IllegalArgumentException
+	 *             if the instance is not one of the candidates of this table.
+	 */
+	public int getId(Instance candidate)
+	{
+		if(this.denseCandidates != null)
+		{
+			int id = this.denseCandidates.indexOf(candidate);
+			if(id < 0)
+				throw new IllegalArgumentException("Instance is not a candidate of this prediction table.");
+			return id;
+		}
+		Integer id = this.ids.get(candidate);
+		if(id == null)
+			throw new IllegalArgumentException("Instance is not a candidate of this prediction table.");
+		return id;
+	}
+
+	/**
+	 * Returns the candidates, the id of a candidate is its index.
+	 */
+	public Instances getCandidates()
+	{
+		return this.candidates;
+	}
+
+	public int[] getIds(Iterable<Instance> candidates, int size)
+	{
+		int[] ret = new int[size];
+		int i = 0;
+		for(Instance candidate : candidates)
+			ret[i++] = this.getId(candidate);
+		return ret;
+	}
+
+	/**
+	 * Returns the predictions of the model for all candidates, indexed by id. The array is backed by the table.
+	 */
+	public double[] getPredictions(int model)
+	{
+		return this.predictions[model];
+	}
+
+	public double get(int model, int id)
+	{
+		return this.predictions[model][id];
+	}
+
+	public int numModels()
+	{
+		return this.predictions.length;
+	}
+
+	public int numCandidates()
+	{
+		return this.numCandidates;
+	}
+}
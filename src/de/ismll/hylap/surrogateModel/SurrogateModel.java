@@ -1,5 +1,7 @@
 package de.ismll.hylap.surrogateModel;
 
+import java.util.List;
+
 import de.ismll.core.Instance;
 import de.ismll.core.Instances;
 
@@ -13,4 +15,23 @@ public interface SurrogateModel
 	 * @param instance
 	 */
 	public double[] predict(Instance instance);
+
+	/**
+	 * Predicts all instances at once. Returns an array where the first entry contains the means and the second the standard deviations. May be called
+	 * concurrently for disjoint lists as long as the model is not changed.
+	 * 
+	 * @param instances
+	 */
+	public double[][] predict(List<Instance> instances);
+
+	/**
+	 * Pretends that the candidate was evaluated with the given target, so that following predictions account for it until
+	 * {@link #clearFantasies()} is called. Used to propose several candidates before any of them is evaluated.
+	 */
+	public void fantasize(Instance candidate, double target);
+
+	/**
+	 * Restores the model as it was before the first call of {@link #fantasize(Instance, double)}.
+	 */
+	public void clearFantasies();
 }
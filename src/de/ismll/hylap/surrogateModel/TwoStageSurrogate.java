@@ -1,13 +1,14 @@
 package de.ismll.hylap.surrogateModel;
 
+import java.util.ArrayList;
 import java.util.Arrays;
-import java.util.HashMap;
+import java.util.List;
 
 import de.ismll.core.Instance;
 import de.ismll.core.InstanceUtils;
 import de.ismll.core.Instances;
 import de.ismll.core.regression.GaussianProcessRegression;
-import de.ismll.hylap.HyperparameterCombination;
+import de.ismll.hylap.SearchSpace;
 import de.ismll.kernel.SEARDKernel;
 
 public class TwoStageSurrogate implements SurrogateModel
@@ -16,6 +17,8 @@ public class TwoStageSurrogate implements SurrogateModel
 
 	private GaussianProcessRegression[] gp;
 
+	private SearchSpace space;
+
 	private Instances data;
 
 	private int epochs = 100;
@@ -26,7 +29,37 @@ public class TwoStageSurrogate implements SurrogateModel
 
 	private double[] similarity;
 
-	private HashMap<Instance, Double>[] cachedPredictions;
+	/**
+	 * Similarity weighted sum of the base model predictions for every candidate id, fixed until the next call of train().
+	 */
+	private double[] mixture;
+
+	/**
+	 * Sum of the self-similarity and all similarities.
+	 */
+	private double denominator;
+
+	private PredictionTable cachedPredictions;
+
+	/**
+	 * Views of the hyperparameters of every candidate, indexed by id. The target GP is trained on and predicts these views, so no values are copied.
+	 */
+	private Instances projectedCandidates;
+
+	/**
+	 * Ids of the instances in untouchedKnownTest in the prediction table.
+	 */
+	private int[] knownTestIds;
+
+	/**
+	 * Number of instances of the target GP before the first fantasy, or -1 if there are no fantasies.
+	 */
+	private int fantasyStart = -1;
+
+	/**
+	 * Target GP replaced by a GP on the fantasies only if there were no observations yet.
+	 */
+	private GaussianProcessRegression modelWithoutFantasies;
 
 	private Instances[] untouchedTrain;
 
@@ -37,96 +70,53 @@ public class TwoStageSurrogate implements SurrogateModel
 	 */
 	private Instance metafeatureInstance;
 
-	public TwoStageSurrogate(Instances[] train, Instances test, double bandwidth, boolean metafeatures)
+	public TwoStageSurrogate(Instances[] train, Instances test, SearchSpace space, double bandwidth, boolean metafeatures)
 	{
-		this.untouchedTrain = train;
-		this.bandwidth = bandwidth;
-		Instances[] scaledTrain = new Instances[train.length];
-		for(int i = 0; i < train.length; i++)
-		{
-			scaledTrain[i] = new Instances(HyperparameterCombination.HYPERPARAMETER_INDEX_RANGE_MAX);
-			double max = Double.NEGATIVE_INFINITY;
-			double min = Double.POSITIVE_INFINITY;
-			for(int j = 0; j < train[i].numInstances(); j++)
-			{
-				double target = train[i].instance(j).target();
-				max = Math.max(target, max);
-				min = Math.min(target, min);
-			}
-
-			for(int j = 0; j < train[i].numInstances(); j++)
-			{
-				Instance instance = train[i].instance(j);
-				scaledTrain[i].add(InstanceUtils.createDenseInstance((instance.target() - min) / ((max - min) == 0 ? 1 : (max - min)),
-						Arrays.copyOfRange(instance.getValues(), 0, HyperparameterCombination.HYPERPARAMETER_INDEX_RANGE_MAX)));
-			}
-		}
+		this(train, test, space, bandwidth, metafeatures, Runtime.getRuntime().availableProcessors());
+	}
 
-		this.gp = new GaussianProcessRegression[scaledTrain.length];
-		for(int d = 0; d < scaledTrain.length; d++)
-		{
-			this.gp[d] = new GaussianProcessRegression();
-			this.gp[d].setKernel(new SEARDKernel(HyperparameterCombination.HYPERPARAMETER_INDEX_RANGE_MAX));
-			this.gp[d].setLearnKernelParameters(true);
-			this.gp[d].setEpochs(100);
-			this.gp[d].train(scaledTrain[d]);
-		}
+	/**
+	 * @param numThreads
+	 *            Number of threads used to train the GPs on the training data sets. The result does not depend on it.
+	 */
+	public TwoStageSurrogate(Instances[] train, Instances test, SearchSpace space, double bandwidth, boolean metafeatures, int numThreads)
+	{
+		this(train, test, space, bandwidth, metafeatures, numThreads, false);
+	}
 
-		// Precompute similarities for speed-up
-		this.cachedPredictions = new HashMap[this.gp.length];
-		for(int d = 0; d < scaledTrain.length; d++)
-		{
-			this.cachedPredictions[d] = new HashMap<Instance, Double>();
-			for(int i = 0; i < test.numInstances(); i++)
-			{
-				Instance instance = test.instance(i);
-				Instance scaledInstance = InstanceUtils.createDenseInstance(instance.target(), Arrays.copyOfRange(instance.getValues(), 0, HyperparameterCombination.HYPERPARAMETER_INDEX_RANGE_MAX));
-				this.cachedPredictions[d].put(instance, this.gp[d].predict(scaledInstance));
-			}
-		}
+	/**
+	 * @param sharedKernel
+	 *            Whether the GPs on the training data sets share one kernel, see {@link BaseModelBank#setSharedKernel(boolean)}.
+	 */
+	public TwoStageSurrogate(Instances[] train, Instances test, SearchSpace space, double bandwidth, boolean metafeatures, int numThreads, boolean sharedKernel)
+	{
+		this(createBank(train, space, numThreads, sharedKernel), -1, test, bandwidth, metafeatures);
+	}
 
-		if(metafeatures)
-		{
-			this.kernel = new EuclideanDistance();
-			this.metafeatureInstance = test.instance(0);
-		}
-		else
-			this.kernel = new KendallTauCorrelation();
+	/**
+	 * Uses the GPs of all data sets in the bank except the excluded one, training only those that are missing.
+	 */
+	public TwoStageSurrogate(BaseModelBank bank, int excluded, Instances test, double bandwidth, boolean metafeatures)
+	{
+		this(bank.getData(excluded), test, bank.getSearchSpace(), bank.getModels(excluded), bank.predict(test, excluded), bandwidth, metafeatures);
+	}
 
-		this.similarity = new double[this.gp.length];
-		for(int i = 0; i < this.gp.length; i++)
-		{
-			this.similarity[i] = this.kernel.selfSimilarity();
-		}
+	private static BaseModelBank createBank(Instances[] train, SearchSpace space, int numThreads, boolean sharedKernel)
+	{
+		BaseModelBank bank = new BaseModelBank(train, space, numThreads);
+		bank.setSharedKernel(sharedKernel);
+		return bank;
 	}
 
-	public TwoStageSurrogate(Instances[] train, Instances test, GaussianProcessRegression[] surrogates, HashMap<Instance, Double>[] cachedPredictions, double bandwidth, boolean metafeatures)
+	public TwoStageSurrogate(Instances[] train, Instances test, SearchSpace space, GaussianProcessRegression[] surrogates, PredictionTable cachedPredictions, double bandwidth,
+			boolean metafeatures)
 	{
 		this.untouchedTrain = train;
+		this.space = space;
 		this.bandwidth = bandwidth;
-		Instances[] scaledTrain = new Instances[train.length];
-		for(int i = 0; i < train.length; i++)
-		{
-			scaledTrain[i] = new Instances(HyperparameterCombination.HYPERPARAMETER_INDEX_RANGE_MAX);
-			double max = Double.NEGATIVE_INFINITY;
-			double min = Double.POSITIVE_INFINITY;
-			for(int j = 0; j < train[i].numInstances(); j++)
-			{
-				double target = train[i].instance(j).target();
-				max = Math.max(target, max);
-				min = Math.min(target, min);
-			}
-
-			for(int j = 0; j < train[i].numInstances(); j++)
-			{
-				Instance instance = train[i].instance(j);
-				scaledTrain[i].add(InstanceUtils.createDenseInstance((instance.target() - min) / ((max - min) == 0 ? 1 : (max - min)),
-						Arrays.copyOfRange(instance.getValues(), 0, HyperparameterCombination.HYPERPARAMETER_INDEX_RANGE_MAX)));
-			}
-		}
-
 		this.gp = surrogates;
 		this.cachedPredictions = cachedPredictions;
+		this.projectedCandidates = cachedPredictions.getCandidates().project(this.space.numHyperparameters());
 
 		if(metafeatures)
 		{
@@ -141,6 +131,27 @@ public class TwoStageSurrogate implements SurrogateModel
 		{
 			this.similarity[i] = this.kernel.selfSimilarity();
 		}
+		this.mixture = new double[cachedPredictions.numCandidates()];
+		this.updateMixture();
+	}
+
+	/**
+	 * Folds the similarities into the weighted sum of the base model predictions, skipping base models with zero weight.
+	 */
+	private void updateMixture()
+	{
+		Arrays.fill(this.mixture, 0);
+		this.denominator = this.kernel.selfSimilarity();
+		for(int i = 0; i < this.gp.length; i++)
+		{
+			double similarity = this.similarity[i];
+			if(similarity == 0)
+				continue;
+			double[] predictions = this.cachedPredictions.getPredictions(i);
+			for(int c = 0; c < this.mixture.length; c++)
+				this.mixture[c] += predictions[c] * similarity;
+			this.denominator += similarity;
+		}
 	}
 
 	public GaussianProcessRegression[] getSurrogates()
@@ -148,7 +159,7 @@ public class TwoStageSurrogate implements SurrogateModel
 		return this.gp;
 	}
 
-	public HashMap<Instance, Double>[] getCachedPredictions()
+	public PredictionTable getCachedPredictions()
 	{
 		return this.cachedPredictions;
 	}
@@ -157,39 +168,79 @@ public class TwoStageSurrogate implements SurrogateModel
 	public void train(Instances instances)
 	{
 		this.untouchedKnownTest = instances;
-		this.data = new Instances(HyperparameterCombination.HYPERPARAMETER_INDEX_RANGE_MAX);
-		for(int i = 0; i < instances.numInstances(); i++)
+		this.knownTestIds = this.cachedPredictions.getIds(instances, instances.numInstances());
+		this.clearFantasies();
+		if(this.epochs == 0 && this.model.getEpochs() == 0 && this.data != null && instances.numInstances() > this.data.numInstances())
 		{
-			Instance instance = instances.instance(i);
-			this.data.add(InstanceUtils.createDenseInstance(instance.target(), Arrays.copyOfRange(instance.getValues(), 0, HyperparameterCombination.HYPERPARAMETER_INDEX_RANGE_MAX)));
+			// Kernel parameters are not learned anymore, so the previous fit only has to be extended by the new observations.
+			for(int i = this.data.numInstances(); i < instances.numInstances(); i++)
+				this.model.onlineUpdate(this.projectedCandidates.instance(this.knownTestIds[i]));
+		}
+		else
+		{
+			this.data = new Instances(this.space.numHyperparameters());
+			for(int i = 0; i < instances.numInstances(); i++)
+				this.data.add(this.projectedCandidates.instance(this.knownTestIds[i]));
+			this.model = new GaussianProcessRegression();
+			// The history differs at every fit, so its squared differences are not worth sharing.
+			this.model.setKernel(new SEARDKernel(this.data.numValues(), false));
+			this.model.setLearnKernelParameters(true);
+			this.model.setEpochs(this.epochs);
+			this.model.train(this.data);
 		}
-		this.model = new GaussianProcessRegression();
-		this.model.setKernel(new SEARDKernel(this.data.numValues()));
-		this.model.setLearnKernelParameters(true);
-		this.model.setEpochs(this.epochs);
 		this.epochs -= 5;
 		this.epochs = Math.max(this.epochs, 0);
-		this.model.train(this.data);
 
+		this.kernel.update();
 		for(int i = 0; i < this.gp.length; i++)
 		{
 			this.similarity[i] = this.kernel.kernel(i);
 		}
+		this.updateMixture();
 	}
 
+	/**
+	 * Extends the target GP by the fantasy with {@link GaussianProcessRegression#onlineUpdate(Instance)} in O(n^2). The similarities to the training
+	 * data sets stay as they are, so the fantasy changes the target GP only. Before the first observation, the fantasies are fitted by a GP with the
+	 * initial kernel parameters.
+	 */
 	@Override
-	public double[] predict(Instance instance)
+	public void fantasize(Instance candidate, double target)
 	{
-		Instance scaledInstance = InstanceUtils.createDenseInstance(instance.target(), Arrays.copyOfRange(instance.getValues(), 0, HyperparameterCombination.HYPERPARAMETER_INDEX_RANGE_MAX));
-		double[] prediction = this.model.predictWithUncertainty(scaledInstance);
-		double denominator = this.kernel.selfSimilarity();
-		for(int i = 0; i < this.gp.length; i++)
+		Instance fantasy = InstanceUtils.project(candidate, this.space.numHyperparameters(), target);
+		if(this.data == null && this.modelWithoutFantasies == null)
 		{
-			double similarity = this.similarity[i];
-			prediction[0] += this.cachedPredictions[i].get(instance) * similarity;
-			denominator += similarity;
+			this.modelWithoutFantasies = this.model;
+			Instances fantasies = new Instances(this.space.numHyperparameters());
+			fantasies.add(fantasy);
+			this.model = new GaussianProcessRegression();
+			this.model.setKernel(new SEARDKernel(fantasies.numValues(), false));
+			this.model.train(fantasies);
+			return;
 		}
-		prediction[0] /= denominator;
+		if(this.fantasyStart < 0 && this.modelWithoutFantasies == null)
+			this.fantasyStart = this.data.numInstances();
+		this.model.onlineUpdate(fantasy);
+	}
+
+	@Override
+	public void clearFantasies()
+	{
+		if(this.modelWithoutFantasies != null)
+			this.model = this.modelWithoutFantasies;
+		else if(this.fantasyStart >= 0)
+			this.model.truncate(this.fantasyStart);
+		this.modelWithoutFantasies = null;
+		this.fantasyStart = -1;
+	}
+
+	@Override
+	public double[] predict(Instance instance)
+	{
+		int id = this.cachedPredictions.getId(instance);
+		double[] prediction = this.model.predictWithUncertainty(this.projectedCandidates.instance(id));
+		prediction[0] += this.mixture[id];
+		prediction[0] /= this.denominator;
 
 		// If the standard deviation is infinity, the mean does not matter.
 		if(prediction[1] == Double.POSITIVE_INFINITY)
@@ -198,8 +249,32 @@ public class TwoStageSurrogate implements SurrogateModel
 		return prediction;
 	}
 
+	@Override
+	public double[][] predict(List<Instance> instances)
+	{
+		int[] ids = this.cachedPredictions.getIds(instances, instances.size());
+		ArrayList<Instance> projectedInstances = new ArrayList<Instance>(ids.length);
+		for(int id : ids)
+			projectedInstances.add(this.projectedCandidates.instance(id));
+		double[][] prediction = this.model.predictWithUncertainty(projectedInstances);
+		for(int c = 0; c < ids.length; c++)
+		{
+			prediction[0][c] = (prediction[0][c] + this.mixture[ids[c]]) / this.denominator;
+
+			// If the standard deviation is infinity, the mean does not matter.
+			if(prediction[1][c] == Double.POSITIVE_INFINITY)
+				prediction[1][c] = 1000;
+		}
+		return prediction;
+	}
+
 	private interface Kernel
 	{
+		/**
+		 * Called whenever the known test instances changed.
+		 */
+		public void update();
+
 		public double kernel(int index);
 
 		public double selfSimilarity();
@@ -207,28 +282,59 @@ public class TwoStageSurrogate implements SurrogateModel
 
 	private class KendallTauCorrelation implements Kernel
 	{
+		/**
+		 * Number of discordant pairs per base model among the first counted known test instances.
+		 */
+		private long[] discordantPairs = new long[gp.length];
+
+		private int counted;
+
+		private Instances countedInstances;
+
+		private Instance lastCounted;
+
+		private double[] targets = new double[0], predictions = new double[0];
+
+		/**
+		 * If exactly one instance was appended since the last update, only its pairs are counted, in O(n) per base model. Otherwise all pairs are
+		 * counted from scratch in O(n log^2 n).
+		 */
+		@Override
+		public void update()
+		{
+			int n = untouchedKnownTest.numInstances();
+			boolean appended = untouchedKnownTest == this.countedInstances && n == this.counted + 1 && (this.counted == 0 || untouchedKnownTest.instance(this.counted - 1) == this.lastCounted);
+			if(this.targets.length < n)
+			{
+				this.targets = Arrays.copyOf(this.targets, Math.max(n, 2 * this.targets.length));
+				this.predictions = new double[this.targets.length];
+			}
+			for(int i = appended ? this.counted : 0; i < n; i++)
+				this.targets[i] = untouchedKnownTest.instance(i).target();
+			for(int m = 0; m < gp.length; m++)
+			{
+				double[] row = cachedPredictions.getPredictions(m);
+				for(int i = 0; i < n; i++)
+					this.predictions[i] = row[knownTestIds[i]];
+				if(appended)
+					this.discordantPairs[m] += DiscordantPairs.countNew(this.targets, this.predictions, n);
+				else
+					this.discordantPairs[m] = DiscordantPairs.count(this.targets, this.predictions, n);
+			}
+			this.counted = n;
+			this.countedInstances = untouchedKnownTest;
+			this.lastCounted = n > 0 ? untouchedKnownTest.instance(n - 1) : null;
+		}
+
 		@Override
 		public double kernel(int index)
 		{
 			if(untouchedKnownTest == null || untouchedKnownTest.numInstances() < 2)
 				return this.selfSimilarity();
-			double discordantPairs = 0;
-			int totalPairs = 0;
-			for(int i = 0; i < untouchedKnownTest.numInstances(); i++)
-			{
-				Instance instance1 = untouchedKnownTest.instance(i);
-				for(int j = i + 1; j < untouchedKnownTest.numInstances(); j++)
-				{
-					Instance instance2 = untouchedKnownTest.instance(j);
-					if(instance1.target() < instance2.target() ^ cachedPredictions[index].get(instance1) < cachedPredictions[index].get(instance2))
-					{
-						discordantPairs++;
-					}
-					totalPairs++;
-				}
-			}
+			int n = untouchedKnownTest.numInstances();
+			int totalPairs = n * (n - 1) / 2;
 
-			double t = discordantPairs / totalPairs / bandwidth;
+			double t = (double) this.discordantPairs[index] / totalPairs / bandwidth;
 			return(t < 1 ? 0.75 * (1 - t * t) : 0);
 		}
 
@@ -241,6 +347,11 @@ public class TwoStageSurrogate implements SurrogateModel
 
 	private class EuclideanDistance implements Kernel
 	{
+		@Override
+		public void update()
+		{
+		}
+
 		@Override
 		public double kernel(int index)
 		{
@@ -253,9 +364,9 @@ public class TwoStageSurrogate implements SurrogateModel
 			double[] values1 = instance1.getValues(), values2 = instance2.getValues();
 			while(index1 < keys1.length && index2 < keys2.length)
 			{
-				if(keys1[index1] < HyperparameterCombination.HYPERPARAMETER_INDEX_RANGE_MAX)
+				if(keys1[index1] < space.numHyperparameters())
 					index1++;
-				else if(keys2[index2] < HyperparameterCombination.HYPERPARAMETER_INDEX_RANGE_MAX)
+				else if(keys2[index2] < space.numHyperparameters())
 					index2++;
 				else
 				{
@@ -1,9 +1,6 @@
 package de.ismll.kernel;
 
-import org.apache.commons.math3.linear.LUDecomposition;
-import org.apache.commons.math3.linear.RealMatrix;
-import org.apache.commons.math3.linear.RealVector;
-
+import de.ismll.core.CholeskyFactor;
 import de.ismll.core.Instance;
 import de.ismll.core.Instances;
 
@@ -11,17 +8,54 @@ public abstract class Kernel
 {
 	protected double learnRate = 0.1;
 
+	/**
+	 * Covariance of two instances without the noise, also if both are the same object, e.g. a training instance that is predicted.
+	 */
 	public abstract double computeValue(Instance instance1, Instance instance2);
 
+	/**
+	 * Variance of the noise, which is only added to the diagonal of the kernel matrix of the training instances and to predictive variances.
+	 */
+	public abstract double getNoiseVariance();
+
 	public abstract double[][] computeKernel(Instances instances);
 
+	/**
+	 * Computes the lower triangle of the kernel matrix packed row by row, i.e. entry (i, j) with j <= i is stored at i * (i + 1) / 2 + j.
+	 */
+	public double[] computePackedKernel(Instances instances)
+	{
+		double[][] kArray = this.computeKernel(instances);
+		double[] packed = new double[kArray.length * (kArray.length + 1) / 2];
+		for(int i = 0, index = 0; i < kArray.length; i++)
+			for(int j = 0; j <= i; j++)
+				packed[index++] = kArray[i][j];
+		return packed;
+	}
+
 	/**
 	 * One update step of the kernel parameters. Call a couple of times to iteratively maximize the likelihood on train. Do not forget to recompute K and alpha.
 	 * 
+	 * @param L
+	 *            Cholesky factor of the current kernel matrix.
+	 * @param alpha
+	 *            K^-1 * y for the current kernel matrix.
+	 * @param initialize
+	 *            If it is true, reinitialize (setting history of adagrad to zero etc.)
+	 */
+	public void updateKernelParameters(Instances train, CholeskyFactor L, double[] alpha, boolean initialize)
+	{
+		this.updateKernelParameters(train, getAATMinusKInverse(alpha, L), initialize);
+	}
+
+	/**
+	 * One update step of the kernel parameters given the packed lower triangle of alpha * alpha^T - K^-1. The gradient of the log-likelihood with
+	 * respect to a kernel parameter theta is 0.5 * trace((alpha * alpha^T - K^-1) * dK/dtheta).
+	 * 
 	 * @param initialize
 	 *            If it is true, reinitialize (setting history of adagrad to zero etc.)
 	 */
-	public void updateKernelParameters(Instances train, RealMatrix K, RealVector alpha, boolean initialize)
+	public void updateKernelParameters(Instances train, double[] aaTMinusKInverse, boolean initialize)
 	{
 		if(initialize)
 			this.initialize();
@@ -29,21 +63,41 @@ public abstract class Kernel
 
 	protected abstract void initialize();
 
-	protected double computeDerivative(RealMatrix aaTMinusKInverse, RealMatrix kernelDerivativeMatrix)
+	/**
+	 * Drops everything cached for the instances the kernel was last computed on, e.g. their squared differences. Called once a model is trained, so
+	 * the cache does not live as long as the model.
+	 */
+	public void release()
 	{
-		double trace = 0;
-		for(int i = 0; i < aaTMinusKInverse.getRowDimension(); i++)
-		{
-			for(int j = 0; j < aaTMinusKInverse.getColumnDimension(); j++)
-			{
-				trace += aaTMinusKInverse.getEntry(i, j) * kernelDerivativeMatrix.getEntry(j, i);
-			}
-		}
-		return 0.5 * trace;
 	}
 
-	protected RealMatrix getAATMinusKInverse(RealVector alpha, RealMatrix K)
+	/**
+	 * Computes the packed lower triangle of alpha * alpha^T - K^-1, reusing the Cholesky factor of K for the inverse.
+	 */
+	public static double[] getAATMinusKInverse(double[] alpha, CholeskyFactor L)
+	{
+		double[] w = L.inverse();
+		for(int i = 0, index = 0; i < L.getDimension(); i++)
+			for(int j = 0; j <= i; j++, index++)
+				w[index] = alpha[i] * alpha[j] - w[index];
+		return w;
+	}
+
+	/**
+	 * Computes the packed lower triangle of the sum of alpha_c * alpha_c^T - K^-1 over m tasks sharing the kernel matrix K. The alphas are the columns
+	 * of A, stored row-major, i.e. entry (i, c) is found at i * m + c.
+	 */
+	public static double[] getAATMinusKInverse(double[] A, int m, CholeskyFactor L)
 	{
-		return alpha.outerProduct(alpha).add(new LUDecomposition(K).getSolver().getInverse().scalarMultiply(-1));
+		double[] w = L.inverse();
+		for(int i = 0, index = 0; i < L.getDimension(); i++)
+			for(int j = 0; j <= i; j++, index++)
+			{
+				double sum = 0;
+				for(int c = 0; c < m; c++)
+					sum += A[i * m + c] * A[j * m + c];
+				w[index] = sum - m * w[index];
+			}
+		return w;
 	}
 }
@@ -1,9 +1,5 @@
 package de.ismll.kernel;
 
-import org.apache.commons.math3.linear.MatrixUtils;
-import org.apache.commons.math3.linear.RealMatrix;
-import org.apache.commons.math3.linear.RealVector;
-
 import de.ismll.core.Instance;
 import de.ismll.core.Instances;
 
@@ -20,15 +16,37 @@ public class SEARDKernel extends Kernel
 
 	private double[] sumL;
 
-	// private float[][][] summandsOfL2NormOfDifference;
+	/**
+	 * Squared differences of the instances the kernel was last computed on, shared with all kernels on instances with the same values.
+	 */
+	private SquaredDifferences squaredDifferences;
+
+	private Instances instances;
 
-	// private Instances instances;
+	/**
+	 * Modification count of the instances when the squared differences were computed.
+	 */
+	private int modificationCount;
 
 	private int length;
 
+	private boolean sharedSquaredDifferences;
+
 	public SEARDKernel(int length)
+	{
+		this(length, true);
+	}
+
+	/**
+	 * @param sharedSquaredDifferences
+	 *            Whether the squared differences are looked up in the cache shared by all kernels, see {@link SquaredDifferences#of(Instances, int)}.
+	 *            Pass false for training data that changes with every fit, e.g. a growing history, so the cache does not fill up with one entry per
+	 *            fit.
+	 */
+	public SEARDKernel(int length, boolean sharedSquaredDifferences)
 	{
 		this.length = length;
+		this.sharedSquaredDifferences = sharedSquaredDifferences;
 		this.initialize();
 	}
 
@@ -54,92 +72,101 @@ public class SEARDKernel extends Kernel
 	@Override
 	public double[][] computeKernel(Instances instances)
 	{
-		// if(!instances.equals(this.instances))
-		// {
-		// precomputeSummandsOfSquaredL2NormOfDifferences(instances);
-		// }
+		double[] packed = this.computePackedKernel(instances);
 		double[][] kArray = new double[instances.numInstances()][instances.numInstances()];
-		for(int i = 0; i < instances.numInstances(); i++)
-			for(int j = i; j < instances.numInstances(); j++)
+		for(int i = 0, index = 0; i < instances.numInstances(); i++)
+			for(int j = 0; j <= i; j++, index++)
 			{
-				kArray[i][j] = this.computeValue(instances.instance(i), instances.instance(j));
-				kArray[j][i] = kArray[i][j];
+				kArray[i][j] = packed[index];
+				kArray[j][i] = packed[index];
 			}
 		return kArray;
 	}
 
-	// private void precomputeSummandsOfSquaredL2NormOfDifferences(Instances instances)
-	// {
-	// this.summandsOfL2NormOfDifference = new float[instances.numInstances()][][];
-	// for(int i = 0; i < summandsOfL2NormOfDifference.length; i++)
-	// {
-	// summandsOfL2NormOfDifference[i] = new float[i + 1][instances.numValues()];
-	// for(int j = 0; j < summandsOfL2NormOfDifference[i].length; j++)
-	// {
-	// for(int d = 0; d < instances.numValues(); d++)
-	// {
-	// float absDiff = (float) (instances.instance(i).getValue(d) - instances.instance(j).getValue(d));
-	// summandsOfL2NormOfDifference[i][j][d] = absDiff * absDiff;
-	// }
-	// }
-	// }
-	// }
-
-	// private double computeValue(int i, int j)
-	// {
-	// if(i == j)
-	// {
-	// return Math.pow(this.sigma_f, 2) * this.getExponentialPart(i, j) + this.sigma_y * this.sigma_y;
-	// }
-	// else
-	// {
-	// return Math.pow(this.sigma_f, 2) * this.getExponentialPart(i, j);
-	// }
-	// }
-
 	@Override
-	public double computeValue(Instance instance1, Instance instance2)
+	public double[] computePackedKernel(Instances instances)
 	{
-		if(instance1 == instance2)
+		double[] differences = this.getSquaredDifferences(instances).getData();
+		double[] squaredLengths = new double[this.length];
+		for(int d = 0; d < this.length; d++)
+			squaredLengths[d] = this.sigma_l[d] * this.sigma_l[d];
+		double sigmaF2 = this.sigma_f * this.sigma_f;
+		double[] packed = new double[instances.numInstances() * (instances.numInstances() + 1) / 2];
+		for(int i = 0, index = 0; i < instances.numInstances(); i++)
 		{
-			return Math.pow(this.sigma_f, 2) * this.getExponentialPart(instance1, instance2) + this.sigma_y * this.sigma_y;
+			for(int j = 0; j <= i; j++, index++)
+			{
+				double z = 0;
+				for(int d = 0, offset = index * this.length; d < this.length; d++)
+					z += differences[offset + d] / squaredLengths[d];
+				packed[index] = sigmaF2 * Math.exp(-z / 2);
+			}
+			packed[index - 1] += this.sigma_y * this.sigma_y;
 		}
-		else
+		return packed;
+	}
+
+	/**
+	 * Looks the squared differences up in the shared cache, or computes them if they are not shared, unless they belong to the same instances as last
+	 * time and these were not modified since.
+	 */
+	private SquaredDifferences getSquaredDifferences(Instances instances)
+	{
+		if(instances != this.instances || this.squaredDifferences == null || instances.getModificationCount() != this.modificationCount)
 		{
-			return Math.pow(this.sigma_f, 2) * this.getExponentialPart(instance1, instance2);
+			this.squaredDifferences = this.sharedSquaredDifferences ? SquaredDifferences.of(instances, this.length) : SquaredDifferences.compute(instances, this.length);
+			this.instances = instances;
+			this.modificationCount = instances.getModificationCount();
 		}
+		return this.squaredDifferences;
 	}
 
-	// private double getExponentialPart(int i, int j)
-	// {
-	// double sum = 0;
-	// if(j > i)
-	// {
-	// for(int d = 0; d < this.summandsOfL2NormOfDifference[0][0].length; d++)
-	// {
-	// sum += summandsOfL2NormOfDifference[j][i][d] / this.sigma_l[d] / this.sigma_l[d];
-	// }
-	// }
-	// else
-	// {
-	// for(int d = 0; d < this.summandsOfL2NormOfDifference[0][0].length; d++)
-	// {
-	// sum += summandsOfL2NormOfDifference[i][j][d] / this.sigma_l[d] / this.sigma_l[d];
-	// }
-	// }
-	// for(int k = 0; k < this.sigma_l.length; k++)
-	// sum +=
-	// return Math.exp(-0.5 * sum);
-	// }
+	@Override
+	public void release()
+	{
+		this.squaredDifferences = null;
+		this.instances = null;
+	}
+
+	private double[] getInverseSquaredLengths()
+	{
+		double[] inverseSquaredLengths = new double[this.length];
+		for(int d = 0; d < this.length; d++)
+			inverseSquaredLengths[d] = 1 / (this.sigma_l[d] * this.sigma_l[d]);
+		return inverseSquaredLengths;
+	}
+
+	@Override
+	public double computeValue(Instance instance1, Instance instance2)
+	{
+		return Math.pow(this.sigma_f, 2) * this.getExponentialPart(instance1, instance2);
+	}
+
+	@Override
+	public double getNoiseVariance()
+	{
+		return this.sigma_y * this.sigma_y;
+	}
 
 	private double getExponentialPart(Instance instance1, Instance instance2)
 	{
 		int[] keys1 = instance1.getKeys();
-		double[] values1 = instance1.getValues();
 		int[] keys2 = instance2.getKeys();
-		double[] values2 = instance2.getValues();
-
+		double[] array1 = instance1.getValueArray(), array2 = instance2.getValueArray();
 		double z = 0;
+		if(array1 != null && array2 != null && keys1.length == keys2.length)
+		{
+			// Both dense, so no keys have to be merged.
+			for(int d = 0, offset1 = instance1.getOffset(), offset2 = instance2.getOffset(); d < keys1.length; d++)
+			{
+				double diff = array1[offset1 + d] - array2[offset2 + d];
+				z += diff * diff / (this.sigma_l[d] * this.sigma_l[d]);
+			}
+			return Math.exp(-z / 2);
+		}
+
+		double[] values1 = instance1.getValues();
+		double[] values2 = instance2.getValues();
 		int index1 = 0, index2 = 0;
 		while(index1 < keys1.length || index2 < keys2.length)
 		{
@@ -153,65 +180,51 @@ public class SEARDKernel extends Kernel
 		return Math.exp(-z / 2);
 	}
 
+	/**
+	 * Computes the gradients of all parameters in a single pass over the lower triangle of alpha * alpha^T - K^-1 without materializing any kernel
+	 * derivative matrix. As before, sigma_y and sigma_f are updated first and the length scale gradients use the updated sigma_f.
+	 */
 	@Override
-	public void updateKernelParameters(Instances train, RealMatrix K, RealVector alpha, boolean initialize)
+	public void updateKernelParameters(Instances train, double[] aaTMinusKInverse, boolean initialize)
 	{
-		super.updateKernelParameters(train, K, alpha, initialize);
-		// if(!train.equals(this.instances) || this.summandsOfL2NormOfDifference == null)
-		// precomputeSummandsOfSquaredL2NormOfDifferences(train);
-
-		int dimension = K.getColumnDimension();
-
-		RealMatrix aaTMinusKInverse = this.getAATMinusKInverse(alpha, K);
-
-		double[][] exponentialParts = new double[dimension][];
-		for(int i = 0; i < exponentialParts.length; i++)
+		super.updateKernelParameters(train, aaTMinusKInverse, initialize);
+		int dimension = train.numInstances();
+		double[] differences = this.getSquaredDifferences(train).getData();
+		double[] inverseSquaredLengths = this.getInverseSquaredLengths();
+
+		// Sum of W_ii, sum of W_ij * exp_ij and sum of W_ij * exp_ij * (x_id - x_jd)^2 over j < i
+		double traceW = 0, sumWE = 0;
+		double[] sumWED = new double[this.length];
+		for(int i = 0, index = 0; i < dimension; i++, index++)
 		{
-			exponentialParts[i] = new double[i + 1];
-			for(int j = 0; j < exponentialParts[i].length; j++)
+			for(int j = 0; j < i; j++, index++)
 			{
-				exponentialParts[i][j] = this.getExponentialPart(train.instance(i), train.instance(j));
+				int offset = index * this.length;
+				double z = 0;
+				for(int d = 0; d < this.length; d++)
+					z += differences[offset + d] * inverseSquaredLengths[d];
+				double we = aaTMinusKInverse[index] * Math.exp(-z / 2);
+				sumWE += we;
+				for(int d = 0; d < this.length; d++)
+					sumWED[d] += we * differences[offset + d];
 			}
+			traceW += aaTMinusKInverse[index];
 		}
 
 		// Derivative of sigma_y
-		double[] kernelDerivativeDiag = new double[dimension];
-		for(int i = 0; i < kernelDerivativeDiag.length; i++)
-		{
-			kernelDerivativeDiag[i] = 2 * this.sigma_y;
-		}
-		double gradientY = this.computeDerivative(aaTMinusKInverse, MatrixUtils.createRealDiagonalMatrix(kernelDerivativeDiag));
+		double gradientY = this.sigma_y * traceW;
 		this.sumY += gradientY * gradientY;
 		this.sigma_y += this.learnRate / Math.sqrt(this.sumY) * gradientY;
 
 		// Derivative of sigma_f
-		double[][] kernelDerivative = new double[dimension][dimension];
-		for(int i = 0; i < exponentialParts.length; i++)
-		{
-			for(int j = 0; j < exponentialParts[i].length; j++)
-			{
-				kernelDerivative[i][j] = 2 * this.sigma_f * exponentialParts[i][j];
-				kernelDerivative[j][i] = kernelDerivative[i][j];
-			}
-		}
-		double gradientF = this.computeDerivative(aaTMinusKInverse, MatrixUtils.createRealMatrix(kernelDerivative));
+		double gradientF = this.sigma_f * (traceW + 2 * sumWE);
 		this.sumF += gradientF * gradientF;
 		this.sigma_f += this.learnRate / Math.sqrt(this.sumF) * gradientF;
 
 		// Derivative of all sigma_l
 		for(int d = 0; d < this.sigma_l.length; d++)
 		{
-			kernelDerivative = new double[dimension][dimension];
-			for(int i = 0; i < exponentialParts.length; i++)
-			{
-				for(int j = 0; j < exponentialParts[i].length; j++)
-				{
-					kernelDerivative[i][j] = sigma_f * sigma_f * exponentialParts[i][j] * Math.pow(train.instance(i).getValue(d) - train.instance(j).getValue(d), 2) / this.sigma_l[d]
-							/ this.sigma_l[d] / this.sigma_l[d];
-					kernelDerivative[j][i] = kernelDerivative[i][j];
-				}
-			}
-			double gradientL = this.computeDerivative(aaTMinusKInverse, MatrixUtils.createRealMatrix(kernelDerivative));
+			double gradientL = this.sigma_f * this.sigma_f * sumWED[d] / this.sigma_l[d] / this.sigma_l[d] / this.sigma_l[d];
 			this.sumL[d] += gradientL * gradientL;
 			this.sigma_l[d] += this.learnRate / Math.sqrt(this.sumL[d]) * gradientL;
 		}
@@ -1,9 +1,5 @@
 package de.ismll.kernel;
 
-import org.apache.commons.math3.linear.MatrixUtils;
-import org.apache.commons.math3.linear.RealMatrix;
-import org.apache.commons.math3.linear.RealVector;
-
 import de.ismll.core.Instance;
 import de.ismll.core.Instances;
 
@@ -56,6 +52,27 @@ public class SEKernel extends Kernel
 		return kArray;
 	}
 
+	@Override
+	public double[] computePackedKernel(Instances instances)
+	{
+		if(!instances.equals(this.instances))
+		{
+			precomputeSquaredL2NormOfDifferences(instances);
+		}
+		double[] packed = new double[instances.numInstances() * (instances.numInstances() + 1) / 2];
+		for(int i = 0, index = 0; i < this.squaredL2NormOfDiff.length; i++)
+			for(int j = 0; j < this.squaredL2NormOfDiff[i].length; j++)
+				packed[index++] = this.computeValue(i, j);
+		return packed;
+	}
+
+	@Override
+	public void release()
+	{
+		this.squaredL2NormOfDiff = null;
+		this.instances = null;
+	}
+
 	private void precomputeSquaredL2NormOfDifferences(Instances instances)
 	{
 		this.squaredL2NormOfDiff = new float[instances.numInstances()][];
@@ -75,15 +92,13 @@ public class SEKernel extends Kernel
 	@Override
 	public double computeValue(Instance instance1, Instance instance2)
 	{
-		if(instance1 == instance2)
-		{
-			return this.sigma_f * this.sigma_f * this.getExponentialPart(instance1, instance2) + this.sigma_y * this.sigma_y;
-		}
-		else
-		{
-			return this.sigma_f * this.sigma_f * this.getExponentialPart(instance1, instance2);
-		}
+		return this.sigma_f * this.sigma_f * this.getExponentialPart(instance1, instance2);
+	}
 
+	@Override
+	public double getNoiseVariance()
+	{
+		return this.sigma_y * this.sigma_y;
 	}
 
 	private double computeValue(int i, int j)
@@ -113,11 +128,22 @@ public class SEKernel extends Kernel
 	private double getSquaredL2NormOfDiff(Instance instance1, Instance instance2)
 	{
 		int[] keys1 = instance1.getKeys();
-		double[] values1 = instance1.getValues();
 		int[] keys2 = instance2.getKeys();
-		double[] values2 = instance2.getValues();
-
+		double[] array1 = instance1.getValueArray(), array2 = instance2.getValueArray();
 		double z = 0;
+		if(array1 != null && array2 != null && keys1.length == keys2.length)
+		{
+			// Both dense, so no keys have to be merged.
+			for(int d = 0, offset1 = instance1.getOffset(), offset2 = instance2.getOffset(); d < keys1.length; d++)
+			{
+				double diff = array1[offset1 + d] - array2[offset2 + d];
+				z += diff * diff;
+			}
+			return z;
+		}
+
+		double[] values1 = instance1.getValues();
+		double[] values2 = instance2.getValues();
 		int index1 = 0, index2 = 0;
 		while(index1 < keys1.length || index2 < keys2.length)
 		{
@@ -132,59 +158,36 @@ public class SEKernel extends Kernel
 	}
 
 	@Override
-	public void updateKernelParameters(Instances train, RealMatrix K, RealVector alpha, boolean initialize)
+	public void updateKernelParameters(Instances train, double[] aaTMinusKInverse, boolean initialize)
 	{
-		super.updateKernelParameters(train, K, alpha, initialize);
+		super.updateKernelParameters(train, aaTMinusKInverse, initialize);
 		if(!train.equals(this.instances) || this.squaredL2NormOfDiff == null)
 			precomputeSquaredL2NormOfDifferences(train);
 
-		int dimension = K.getColumnDimension();
-
-		RealMatrix aaTMinusKInverse = this.getAATMinusKInverse(alpha, K);
-		// Derivative for sigma_y:
-
-		double[][] exponentialParts = new double[dimension][];
-		for(int i = 0; i < this.squaredL2NormOfDiff.length; i++)
+		// Sum of W_ii, sum of W_ij * exp_ij and sum of W_ij * exp_ij * ||x_i-x_j||^2 over j < i
+		double traceW = 0, sumWE = 0, sumWED = 0;
+		for(int i = 0, index = 0; i < this.squaredL2NormOfDiff.length; i++, index++)
 		{
-			exponentialParts[i] = new double[this.squaredL2NormOfDiff[i].length];
-			for(int j = 0; j < this.squaredL2NormOfDiff[i].length; j++)
+			for(int j = 0; j < i; j++, index++)
 			{
-				exponentialParts[i][j] = Math.exp(-this.squaredL2NormOfDiff[i][j] / 2 / this.sigma_l / this.sigma_l);
+				double we = aaTMinusKInverse[index] * Math.exp(-this.squaredL2NormOfDiff[i][j] / 2 / this.sigma_l / this.sigma_l);
+				sumWE += we;
+				sumWED += we * this.squaredL2NormOfDiff[i][j];
 			}
+			traceW += aaTMinusKInverse[index];
 		}
-		double[] kernelDerivativeDiag = new double[dimension];
-		for(int i = 0; i < kernelDerivativeDiag.length; i++)
-		{
-			kernelDerivativeDiag[i] = 2 * this.sigma_y;
-		}
-		double gradientY = this.computeDerivative(aaTMinusKInverse, MatrixUtils.createRealDiagonalMatrix(kernelDerivativeDiag));
+
+		// Derivative for sigma_y:
+		double gradientY = this.sigma_y * traceW;
 		this.sumY += gradientY * gradientY;
 		this.sigma_y += this.learnRate / Math.sqrt(this.sumY) * gradientY;
 		// Derivative for sigma_f:
-		double[][] kernelDerivative = new double[dimension][dimension];
-		for(int i = 0; i < this.squaredL2NormOfDiff.length; i++)
-		{
-			for(int j = 0; j < this.squaredL2NormOfDiff[i].length; j++)
-			{
-				kernelDerivative[i][j] = 2 * this.sigma_f * exponentialParts[i][j];
-				kernelDerivative[j][i] = kernelDerivative[i][j];
-			}
-		}
-		double gradientF = this.computeDerivative(aaTMinusKInverse, MatrixUtils.createRealMatrix(kernelDerivative));
+		double gradientF = this.sigma_f * (traceW + 2 * sumWE);
 		this.sumF += gradientF * gradientF;
 		this.sigma_f += this.learnRate / Math.sqrt(this.sumF) * gradientF;
 
 		// Derivative for sigma_l:
-		// kernelDerivative = new double[dimension][dimension];
-		for(int i = 0; i < this.squaredL2NormOfDiff.length; i++)
-		{
-			for(int j = 0; j < this.squaredL2NormOfDiff[i].length; j++)
-			{
-				kernelDerivative[i][j] = sigma_f * sigma_f * exponentialParts[i][j] * squaredL2NormOfDiff[i][j] / this.sigma_l / this.sigma_l / this.sigma_l;
-				kernelDerivative[j][i] = kernelDerivative[i][j];
-			}
-		}
-		double gradientL = this.computeDerivative(aaTMinusKInverse, MatrixUtils.createRealMatrix(kernelDerivative));
+		double gradientL = sigma_f * sigma_f * sumWED / this.sigma_l / this.sigma_l / this.sigma_l;
 		this.sumL += gradientL * gradientL;
 		this.sigma_l += this.learnRate / Math.sqrt(this.sumL) * gradientL;
 	}
@@ -0,0 +1,157 @@
+package de.ismll.kernel;
+
+import java.lang.ref.SoftReference;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+import de.ismll.core.Instance;
+import de.ismll.core.Instances;
+
+/**
+ * Per-dimension squared differences (x_i[k] - x_j[k])^2 of all pairs j <= i of a set of instances. The pairs are packed row by row like the lower
+ * triangle of a kernel matrix, and the d differences of a pair are stored next to each other, i.e. dimension k of pair (i, j) is found at (i * (i + 1)
+ * / 2 + j) * d + k. An SE-ARD kernel value then reduces to a weighted dot product per pair.
+ *
+ * The differences are cached by content: all sets of instances with the same values in the first d dimensions share one read-only instance, no matter
+ * which targets they have. Entries are softly referenced, so they are released under memory pressure. Instances whose values are not seen again,
+ * e.g. the growing history of a target GP, should use {@link #compute(Instances, int)} instead, which does not fill the cache.
+ */
+public class SquaredDifferences
+{
+	private static final ConcurrentHashMap<Key, Entry> cache = new ConcurrentHashMap<Key, Entry>();
+
+	private final int n, d;
+
+	private final double[] data;
+
+	private SquaredDifferences(Key key)
+	{
+		this.n = key.n;
+		this.d = key.d;
+		this.data = new double[n * (n + 1) / 2 * d];
+		double[] x = key.values;
+		for(int i = 0, index = 0; i < n; i++)
+			for(int j = 0; j <= i; j++)
+				for(int k = 0; k < d; k++)
+				{
+					double diff = x[i * d + k] - x[j * d + k];
+					this.data[index++] = diff * diff;
+				}
+	}
+
+	/**
+	 * Returns the squared differences of the first d dimensions of the instances, computing them only if no set of instances with the same values was
+	 * seen before. Safe to be called concurrently.
+	 */
+	public static SquaredDifferences of(Instances instances, int d)
+	{
+		Key key = new Key(instances, d);
+		Entry entry = cache.get(key);
+		if(entry == null)
+		{
+			removeReleased();
+			Entry newEntry = new Entry();
+			entry = cache.putIfAbsent(key, newEntry);
+			if(entry == null)
+				entry = newEntry;
+		}
+		synchronized(entry)
+		{
+			SquaredDifferences differences = entry.reference == null ? null : entry.reference.get();
+			if(differences == null)
+			{
+				differences = new SquaredDifferences(key);
+				entry.reference = new SoftReference<SquaredDifferences>(differences);
+			}
+			return differences;
+		}
+	}
+
+	/**
+	 * Computes the squared differences of the first d dimensions of the instances without looking them up in or adding them to the cache.
+	 */
+	public static SquaredDifferences compute(Instances instances, int d)
+	{
+		return new SquaredDifferences(new Key(instances, d));
+	}
+
+	private static void removeReleased()
+	{
+		for(Iterator<Map.Entry<Key, Entry>> it = cache.entrySet().iterator(); it.hasNext();)
+		{
+			Entry entry = it.next().getValue();
+			synchronized(entry)
+			{
+				if(entry.reference != null && entry.reference.get() == null)
+					it.remove();
+			}
+		}
+	}
+
+	public int numInstances()
+	{
+		return this.n;
+	}
+
+	public int numDimensions()
+	{
+		return this.d;
+	}
+
+	/**
+	 * The packed squared differences. Must not be modified.
+	 */
+	public double[] getData()
+	{
+		return this.data;
+	}
+
+	private static class Entry
+	{
+		private SoftReference<SquaredDifferences> reference;
+	}
+
+	private static class Key
+	{
+		private final int n, d, hash;
+
+		private final double[] values;
+
+		private Key(Instances instances, int d)
+		{
+			this.n = instances.numInstances();
+			this.d = d;
+			this.values = new double[n * d];
+			for(int i = 0; i < n; i++)
+			{
+				Instance instance = instances.instance(i);
+				double[] array = instance.getValueArray();
+				if(array != null && instance.getKeys().length >= d)
+					System.arraycopy(array, instance.getOffset(), this.values, i * d, d);
+				else
+					for(int k = 0; k < d; k++)
+						this.values[i * d + k] = instance.getValue(k);
+			}
+			this.hash = 31 * d + Arrays.hashCode(this.values);
+		}
+
+		@Override
+		public int hashCode()
+		{
+			return this.hash;
+		}
+
+		@Override
+		public boolean equals(Object obj)
+		{
+			if(this == obj)
+				return true;
+			if(!(obj instanceof Key))
+				return false;
+			Key other = (Key) obj;
+			return this.hash == other.hash && this.n == other.n && this.d == other.d && Arrays.equals(this.values, other.values);
+		}
+	}
+}